@@ -0,0 +1,264 @@
+package com.cuizhanming.oop.behavioral;
+
+import com.cuizhanming.oop.behavioral.CommandPattern.Command;
+import com.cuizhanming.oop.behavioral.CommandPattern.MacroCommand;
+import com.cuizhanming.oop.behavioral.CommandPattern.RemoteControl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the Command Pattern hot path
+ * 命令模式热点路径的JMH基准测试
+ *
+ * Receivers and invoker print on every call, so System.out is swapped for a
+ * discarding stream and the commands below only bump counters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandPatternBenchmark {
+
+    private static final int CALL_SITE_BATCH = 1024;
+    private static final int PRESS_BATCH = 1024;
+
+    // Quiet commands; four distinct classes let the call-site benchmarks go megamorphic
+    static final class CounterA implements Command {
+        int value;
+        public void execute() { value++; }
+        public void undo() { value--; }
+        public String getDescription() { return "A"; }
+    }
+
+    static final class CounterB implements Command {
+        int value;
+        public void execute() { value += 2; }
+        public void undo() { value -= 2; }
+        public String getDescription() { return "B"; }
+    }
+
+    static final class CounterC implements Command {
+        int value;
+        public void execute() { value += 3; }
+        public void undo() { value -= 3; }
+        public String getDescription() { return "C"; }
+    }
+
+    static final class CounterD implements Command {
+        int value;
+        public void execute() { value += 4; }
+        public void undo() { value -= 4; }
+        public String getDescription() { return "D"; }
+    }
+
+    private static Command counter(int kind) {
+        return switch (kind & 3) {
+            case 0 -> new CounterA();
+            case 1 -> new CounterB();
+            case 2 -> new CounterC();
+            default -> new CounterD();
+        };
+    }
+
+    @State(Scope.Thread)
+    public static class SilencedOutput {
+        private PrintStream original;
+
+        @Setup(Level.Trial)
+        public void silence() {
+            original = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void restore() {
+            System.setOut(original);
+        }
+    }
+
+    private static RemoteControl remote(int historyDepth) {
+        RemoteControl remote = new RemoteControl(4);
+        for (int slot = 0; slot < 4; slot++) {
+            remote.setCommand(slot, counter(slot), counter(slot + 1));
+        }
+        for (int i = 0; i < historyDepth; i++) {
+            remote.onButtonPressed(i & 3);
+        }
+        return remote;
+    }
+
+    @State(Scope.Thread)
+    public static class RemoteState {
+        @Param({"0", "1000", "100000"})
+        int historyDepth;
+
+        RemoteControl remote;
+
+        @Setup(Level.Trial)
+        public void setUp(SilencedOutput output) {
+            remote = remote(historyDepth);
+        }
+    }
+
+    // Press-only batches; the untimed teardown undoes each batch, so the history stays
+    // between historyDepth and historyDepth + PRESS_BATCH. A separate state keeps the
+    // per-invocation fixture off the press+undo benchmark.
+    @State(Scope.Thread)
+    public static class PressState {
+        @Param({"0", "1000", "100000"})
+        int historyDepth;
+
+        RemoteControl remote;
+
+        @Setup(Level.Trial)
+        public void setUp(SilencedOutput output) {
+            remote = remote(historyDepth);
+        }
+
+        @TearDown(Level.Invocation)
+        public void undoBatch() {
+            for (int i = 0; i < PRESS_BATCH; i++) {
+                remote.undoButtonPressed();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MacroState {
+        @Param({"4", "64", "1024"})
+        int macroSize;
+
+        MacroCommand macro;
+
+        @Setup(Level.Trial)
+        public void setUp(SilencedOutput output) {
+            Command[] commands = new Command[macroSize];
+            for (int i = 0; i < macroSize; i++) {
+                commands[i] = new CounterA();
+            }
+            macro = new MacroCommand(commands);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HistoryState {
+        @Param({"0", "1000", "100000"})
+        int historyDepth;
+
+        Stack<Command> stack;
+        ArrayDeque<Command> deque;
+        Command command;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            command = new CounterA();
+            stack = new Stack<>();
+            deque = new ArrayDeque<>();
+            for (int i = 0; i < historyDepth; i++) {
+                stack.push(command);
+                deque.push(command);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CallSiteState {
+        Command[] monomorphic;
+        Command[] bimorphic;
+        Command[] megamorphic;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            monomorphic = new Command[CALL_SITE_BATCH];
+            bimorphic = new Command[CALL_SITE_BATCH];
+            megamorphic = new Command[CALL_SITE_BATCH];
+            for (int i = 0; i < CALL_SITE_BATCH; i++) {
+                monomorphic[i] = counter(0);
+                bimorphic[i] = counter(i & 1);
+                megamorphic[i] = counter(i);
+            }
+        }
+    }
+
+    // Dispatch alone; a batch is long enough that per-invocation timing is noise
+    @Benchmark
+    @OperationsPerInvocation(PRESS_BATCH)
+    public void onButtonPressed(PressState state) {
+        for (int i = 0; i < PRESS_BATCH; i++) {
+            state.remote.onButtonPressed(0);
+        }
+    }
+
+    // Press then undo keeps the history at historyDepth across invocations
+    @Benchmark
+    public void onThenUndoButtonPressed(RemoteState state) {
+        state.remote.onButtonPressed(1);
+        state.remote.undoButtonPressed();
+    }
+
+    @Benchmark
+    public void macroExecute(MacroState state) {
+        state.macro.execute();
+    }
+
+    @Benchmark
+    public void macroExecuteAndUndo(MacroState state) {
+        state.macro.execute();
+        state.macro.undo();
+    }
+
+    @Benchmark
+    public Command synchronizedStackPushPop(HistoryState state) {
+        state.stack.push(state.command);
+        return state.stack.pop();
+    }
+
+    @Benchmark
+    public Command arrayDequePushPop(HistoryState state) {
+        state.deque.push(state.command);
+        return state.deque.pop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALL_SITE_BATCH)
+    public void monomorphicCallSite(CallSiteState state) {
+        for (Command command : state.monomorphic) {
+            command.execute();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALL_SITE_BATCH)
+    public void bimorphicCallSite(CallSiteState state) {
+        for (Command command : state.bimorphic) {
+            command.execute();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALL_SITE_BATCH)
+    public void megamorphicCallSite(CallSiteState state) {
+        for (Command command : state.megamorphic) {
+            command.execute();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.cuizhanming.oop.behavioral;
+
+import com.cuizhanming.oop.behavioral.MementoPattern.Cursor;
+import com.cuizhanming.oop.behavioral.MementoPattern.EditorHistory;
+import com.cuizhanming.oop.behavioral.MementoPattern.SharedDocument;
+import com.cuizhanming.oop.behavioral.MementoPattern.TextEditor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for editing throughput in the Memento Pattern
+ * 备忘录模式编辑吞吐量的JMH基准测试
+ *
+ * Every keystroke lands in the middle of the document. The baseline is the original
+ * String-concatenation editor with a Stack of full snapshots, kept here as a reference
+ * that logs the same previews as TextEditor and EditorHistory (SharedDocument cursors
+ * log nothing). Output goes to a discarding stream.
+ * Run with -prof gc to see the bytes allocated per keystroke grow with the document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MementoPatternBenchmark {
+
+    // The original editor, logging the same 80-char preview TextEditor does so both
+    // sides pay for the same output; printing the whole document would swamp the numbers
+    static final class BaselineEditor {
+        private static final int PREVIEW_LENGTH = 80;
+
+        private String content;
+        private int cursorPosition;
+
+        BaselineEditor(String content, int cursorPosition) {
+            this.content = content;
+            this.cursorPosition = cursorPosition;
+        }
+
+        void write(String text) {
+            String before = content.substring(0, cursorPosition);
+            String after = content.substring(cursorPosition);
+            content = before + text + after;
+            cursorPosition += text.length();
+            System.out.println("Wrote: '" + text + "' | Content: '" + preview() + "'");
+        }
+
+        void delete(int count) {
+            int start = Math.max(0, cursorPosition - count);
+            String before = content.substring(0, start);
+            String after = content.substring(cursorPosition);
+            content = before + after;
+            cursorPosition = start;
+            System.out.println("Deleted " + count + " characters | Content: '" + preview() + "'");
+        }
+
+        BaselineSnapshot save() {
+            System.out.println("Saving state...");
+            return new BaselineSnapshot(content, cursorPosition);
+        }
+
+        void restore(BaselineSnapshot snapshot) {
+            content = snapshot.content;
+            cursorPosition = snapshot.cursorPosition;
+            System.out.println("Restored to: '" + preview() + "' (cursor at " + cursorPosition + ")");
+        }
+
+        private String preview() {
+            if (content.length() <= PREVIEW_LENGTH) {
+                return content;
+            }
+            return content.substring(0, PREVIEW_LENGTH - 3) + "...";
+        }
+    }
+
+    static final class BaselineSnapshot {
+        final String content;
+        final int cursorPosition;
+
+        BaselineSnapshot(String content, int cursorPosition) {
+            this.content = content;
+            this.cursorPosition = cursorPosition;
+        }
+    }
+
+    // The original caretaker: a synchronized Stack that shifts on overflow
+    static final class BaselineHistory {
+        private final Stack<BaselineSnapshot> history = new Stack<>();
+        private final int maxHistory;
+
+        BaselineHistory(int maxHistory) {
+            this.maxHistory = maxHistory;
+        }
+
+        void saveState(BaselineEditor editor) {
+            if (history.size() >= maxHistory) {
+                history.remove(0);
+            }
+            history.push(editor.save());
+            System.out.println("State saved. History size: " + history.size());
+        }
+
+        void undo(BaselineEditor editor) {
+            if (!history.isEmpty()) {
+                editor.restore(history.pop());
+                System.out.println("Undo completed. History size: " + history.size());
+            } else {
+                System.out.println("No more states to undo");
+            }
+        }
+    }
+
+    private static String document(int size) {
+        char[] text = new char[size];
+        for (int i = 0; i < size; i++) {
+            text[i] = (i % 64 == 63) ? '\n' : (char) ('a' + i % 26);
+        }
+        return new String(text);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Document {
+        // 1 KB, 1 MB and 100 MB
+        @Param({"1024", "1048576", "104857600"})
+        int documentSize;
+
+        String text;
+        PrintStream original;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            original = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            text = document(documentSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            System.setOut(original);
+        }
+    }
+
+    // Editors are rebuilt per iteration so typing-only runs do not keep growing the text
+    @State(Scope.Thread)
+    public static class Baseline {
+        BaselineEditor editor;
+        BaselineHistory history;
+
+        @Setup(Level.Iteration)
+        public void setUp(Document document) {
+            editor = new BaselineEditor(document.text, document.documentSize / 2);
+            history = new BaselineHistory(100);
+            history.saveState(editor);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RopeEditor {
+        TextEditor editor;
+        EditorHistory history;
+
+        @Setup(Level.Iteration)
+        public void setUp(Document document) {
+            editor = new TextEditor();
+            editor.write(document.text);
+            editor.setCursor(document.documentSize / 2);
+            history = new EditorHistory(100);
+            history.saveState(editor);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            history.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Shared {
+        Cursor cursor;
+
+        @Setup(Level.Iteration)
+        public void setUp(Document document) {
+            cursor = new SharedDocument(document.text).newCursor(document.documentSize / 2);
+        }
+    }
+
+    @Benchmark
+    public void baselineType(Baseline state) {
+        state.editor.write("x");
+    }
+
+    @Benchmark
+    public void ropeType(RopeEditor state) {
+        state.editor.write("x");
+    }
+
+    @Benchmark
+    public void sharedDocumentType(Shared state) {
+        state.cursor.insert("x");
+    }
+
+    // Type then backspace, so the document size stays fixed and deletes can't run dry
+    @Benchmark
+    public void baselineTypeAndDelete(Baseline state) {
+        state.editor.write("x");
+        state.editor.delete(1);
+    }
+
+    @Benchmark
+    public void ropeTypeAndDelete(RopeEditor state) {
+        state.editor.write("x");
+        state.editor.delete(1);
+    }
+
+    @Benchmark
+    public void sharedDocumentTypeAndDelete(Shared state) {
+        state.cursor.insert("x");
+        state.cursor.delete(1);
+    }
+
+    // Undo pops the state just saved, so the history depth stays fixed
+    @Benchmark
+    public void baselineTypeSaveUndo(Baseline state) {
+        state.editor.write("x");
+        state.history.saveState(state.editor);
+        state.history.undo(state.editor);
+    }
+
+    @Benchmark
+    public void ropeTypeSaveUndo(RopeEditor state) {
+        state.editor.write("x");
+        state.history.saveState(state.editor);
+        state.history.undo(state.editor);
+    }
+}
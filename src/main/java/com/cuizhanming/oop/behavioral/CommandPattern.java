@@ -1,6 +1,32 @@
 package com.cuizhanming.oop.behavioral;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
 
 /**
  * Command Pattern - Encapsulates requests as objects
@@ -46,8 +72,13 @@ public class CommandPattern {
             this.location = location;
         }
 
+        // The one place speeds are clamped to the OFF..HIGH range
+        public static int clampSpeed(int speed) {
+            return Math.max(0, Math.min(3, speed));
+        }
+
         public void setSpeed(int speed) {
-            this.speed = Math.max(0, Math.min(3, speed));
+            this.speed = clampSpeed(speed);
             String[] levels = {"OFF", "LOW", "MEDIUM", "HIGH"};
             System.out.println(location + " fan speed: " + levels[this.speed]);
         }
@@ -56,6 +87,65 @@ public class CommandPattern {
         public String getLocation() { return location; }
     }
 
+    // Struct-of-arrays receiver for bulk operations: device state is held in
+    // primitive arrays indexed by device id instead of one object per device
+    public static class DeviceRegistry {
+        private final boolean[] lightsOn;
+        private final byte[] fanSpeeds;
+
+        public DeviceRegistry(int lightCount, int fanCount) {
+            this.lightsOn = new boolean[lightCount];
+            this.fanSpeeds = new byte[fanCount];
+        }
+
+        public int getLightCount() { return lightsOn.length; }
+        public int getFanCount() { return fanSpeeds.length; }
+        public boolean isLightOn(int light) { return lightsOn[light]; }
+        public int getFanSpeed(int fan) { return fanSpeeds[fan]; }
+
+        public void setLight(int light, boolean on) {
+            lightsOn[light] = on;
+        }
+
+        public void setFanSpeed(int fan, int speed) {
+            fanSpeeds[fan] = (byte) Fan.clampSpeed(speed);
+        }
+
+        public int countLightsOn() {
+            int count = 0;
+            for (boolean on : lightsOn) {
+                if (on) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void fillLights(int from, int to, boolean on) {
+            Arrays.fill(lightsOn, from, to, on);
+        }
+
+        void fillFanSpeeds(int from, int to, int speed) {
+            Arrays.fill(fanSpeeds, from, to, (byte) Fan.clampSpeed(speed));
+        }
+
+        boolean[] copyLights(int from, int to) {
+            return Arrays.copyOfRange(lightsOn, from, to);
+        }
+
+        byte[] copyFanSpeeds(int from, int to) {
+            return Arrays.copyOfRange(fanSpeeds, from, to);
+        }
+
+        void restoreLights(int from, boolean[] snapshot) {
+            System.arraycopy(snapshot, 0, lightsOn, from, snapshot.length);
+        }
+
+        void restoreFanSpeeds(int from, byte[] snapshot) {
+            System.arraycopy(snapshot, 0, fanSpeeds, from, snapshot.length);
+        }
+    }
+
     // Concrete commands
     public static class LightOnCommand implements Command {
         private final Light light;
@@ -131,6 +221,131 @@ public class CommandPattern {
         }
     }
 
+    // Bulk commands over a DeviceRegistry range [from, to); undo restores a snapshot of the range
+    public static class BulkLightCommand implements Command {
+        private final DeviceRegistry registry;
+        private final int from;
+        private final int to;
+        private final boolean on;
+        private boolean[] previous;
+
+        public BulkLightCommand(DeviceRegistry registry, int from, int to, boolean on) {
+            Objects.checkFromToIndex(from, to, registry.getLightCount());
+            this.registry = registry;
+            this.from = from;
+            this.to = to;
+            this.on = on;
+        }
+
+        @Override
+        public void execute() {
+            previous = registry.copyLights(from, to);
+            registry.fillLights(from, to, on);
+            System.out.println("Lights " + from + "-" + (to - 1) + " are " + (on ? "ON" : "OFF"));
+        }
+
+        @Override
+        public void undo() {
+            if (previous != null) {
+                registry.restoreLights(from, previous);
+                previous = null;
+            }
+        }
+
+        @Override
+        public String getDescription() {
+            return "Turn " + (on ? "on" : "off") + " lights " + from + "-" + (to - 1);
+        }
+    }
+
+    public static class BulkFanSpeedCommand implements Command {
+        private final DeviceRegistry registry;
+        private final int from;
+        private final int to;
+        private final int speed;
+        private byte[] previous;
+
+        public BulkFanSpeedCommand(DeviceRegistry registry, int from, int to, int speed) {
+            Objects.checkFromToIndex(from, to, registry.getFanCount());
+            this.registry = registry;
+            this.from = from;
+            this.to = to;
+            this.speed = Fan.clampSpeed(speed);
+        }
+
+        @Override
+        public void execute() {
+            previous = registry.copyFanSpeeds(from, to);
+            registry.fillFanSpeeds(from, to, speed);
+            String[] levels = {"OFF", "LOW", "MEDIUM", "HIGH"};
+            System.out.println("Fans " + from + "-" + (to - 1) + " speed: " + levels[speed]);
+        }
+
+        @Override
+        public void undo() {
+            if (previous != null) {
+                registry.restoreFanSpeeds(from, previous);
+                previous = null;
+            }
+        }
+
+        @Override
+        public String getDescription() {
+            String[] levels = {"OFF", "LOW", "MEDIUM", "HIGH"};
+            return "Set fans " + from + "-" + (to - 1) + " to " + levels[speed];
+        }
+    }
+
+    // Scene with a value per device: lights from lightFrom and fans from fanFrom take the
+    // given states in order. Undo restores snapshots of both ranges.
+    public static class SceneCommand implements Command {
+        private final DeviceRegistry registry;
+        private final int lightFrom;
+        private final boolean[] lights;
+        private final int fanFrom;
+        private final byte[] fanSpeeds;
+        private boolean[] previousLights;
+        private byte[] previousFanSpeeds;
+
+        public SceneCommand(DeviceRegistry registry, int lightFrom, boolean[] lights,
+                            int fanFrom, int[] fanSpeeds) {
+            Objects.checkFromIndexSize(lightFrom, lights.length, registry.getLightCount());
+            Objects.checkFromIndexSize(fanFrom, fanSpeeds.length, registry.getFanCount());
+            this.registry = registry;
+            this.lightFrom = lightFrom;
+            this.lights = lights.clone();
+            this.fanFrom = fanFrom;
+            this.fanSpeeds = new byte[fanSpeeds.length];
+            for (int i = 0; i < fanSpeeds.length; i++) {
+                this.fanSpeeds[i] = (byte) Fan.clampSpeed(fanSpeeds[i]);
+            }
+        }
+
+        @Override
+        public void execute() {
+            previousLights = registry.copyLights(lightFrom, lightFrom + lights.length);
+            previousFanSpeeds = registry.copyFanSpeeds(fanFrom, fanFrom + fanSpeeds.length);
+            registry.restoreLights(lightFrom, lights);
+            registry.restoreFanSpeeds(fanFrom, fanSpeeds);
+            System.out.println("Scene set " + lights.length + " lights and " + fanSpeeds.length + " fans");
+        }
+
+        @Override
+        public void undo() {
+            if (previousLights != null) {
+                registry.restoreLights(lightFrom, previousLights);
+                registry.restoreFanSpeeds(fanFrom, previousFanSpeeds);
+                previousLights = null;
+                previousFanSpeeds = null;
+            }
+        }
+
+        @Override
+        public String getDescription() {
+            return "Set scene for " + lights.length + " lights and " + fanSpeeds.length + " fans";
+        }
+    }
+
     // Macro command (composite)
     public static class MacroCommand implements Command {
         private final Command[] commands;
@@ -162,6 +377,148 @@ public class CommandPattern {
         }
     }
 
+    // Macro whose sub-commands run in parallel unless ordered by declared dependencies
+    public static class ParallelMacroCommand implements Command {
+        private final Command[] commands;
+        private final int[][] prerequisites; // prerequisites[i] run before commands[i]
+        private final int[][] dependents;    // dependents[i] run after commands[i]
+        private final int[] topologicalOrder;
+        private final Executor executor;
+
+        private ParallelMacroCommand(Builder builder) {
+            int n = builder.commands.size();
+            this.commands = builder.commands.toArray(new Command[0]);
+            this.prerequisites = new int[n][];
+            int[] dependentCounts = new int[n];
+            for (int i = 0; i < n; i++) {
+                prerequisites[i] = builder.prerequisites.get(i);
+                for (int prerequisite : prerequisites[i]) {
+                    dependentCounts[prerequisite]++;
+                }
+            }
+            this.dependents = new int[n][];
+            for (int i = 0; i < n; i++) {
+                dependents[i] = new int[dependentCounts[i]];
+            }
+            for (int i = 0; i < n; i++) {
+                for (int prerequisite : prerequisites[i]) {
+                    dependents[prerequisite][--dependentCounts[prerequisite]] = i;
+                }
+            }
+            this.topologicalOrder = sort(prerequisites, dependents);
+            this.executor = builder.executor;
+        }
+
+        // Kahn's algorithm; rejects cycles
+        private static int[] sort(int[][] prerequisites, int[][] dependents) {
+            int n = prerequisites.length;
+            int[] remaining = new int[n];
+            int[] order = new int[n];
+            int head = 0;
+            int tail = 0;
+            for (int i = 0; i < n; i++) {
+                remaining[i] = prerequisites[i].length;
+                if (remaining[i] == 0) {
+                    order[tail++] = i;
+                }
+            }
+            while (head < tail) {
+                for (int dependent : dependents[order[head++]]) {
+                    if (--remaining[dependent] == 0) {
+                        order[tail++] = dependent;
+                    }
+                }
+            }
+            if (tail != n) {
+                throw new IllegalStateException("Macro command dependencies contain a cycle");
+            }
+            return order;
+        }
+
+        @Override
+        public void execute() {
+            System.out.println("Executing parallel macro command...");
+            run(prerequisites, topologicalOrder, false, i -> commands[i].execute());
+        }
+
+        @Override
+        public void undo() {
+            System.out.println("Undoing parallel macro command...");
+            // A command is undone only after everything that depended on it
+            run(dependents, topologicalOrder, true, i -> commands[i].undo());
+        }
+
+        private void run(int[][] before, int[] order, boolean reversed, IntConsumer action) {
+            CompletableFuture<?>[] done = new CompletableFuture<?>[commands.length];
+            for (int k = 0; k < order.length; k++) {
+                int i = reversed ? order[order.length - 1 - k] : order[k];
+                Runnable task = () -> action.accept(i);
+                if (before[i].length == 0) {
+                    done[i] = CompletableFuture.runAsync(task, executor);
+                } else {
+                    CompletableFuture<?>[] waitFor = new CompletableFuture<?>[before[i].length];
+                    for (int j = 0; j < waitFor.length; j++) {
+                        waitFor[j] = done[before[i][j]];
+                    }
+                    done[i] = CompletableFuture.allOf(waitFor).thenRunAsync(task, executor);
+                }
+            }
+            try {
+                CompletableFuture.allOf(done).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public String getDescription() {
+            return "Parallel macro: " + commands.length + " commands";
+        }
+
+        public static class Builder {
+            private final List<Command> commands = new ArrayList<>();
+            private final List<int[]> prerequisites = new ArrayList<>();
+            private Executor executor = ForkJoinPool.commonPool();
+
+            // Commands are numbered in the order they are added
+            public Builder add(Command command, int... runAfter) {
+                for (int prerequisite : runAfter) {
+                    if (prerequisite < 0 || prerequisite >= commands.size()) {
+                        throw new IllegalArgumentException("Unknown prerequisite command: " + prerequisite);
+                    }
+                }
+                commands.add(command);
+                prerequisites.add(runAfter.clone());
+                return this;
+            }
+
+            // Declares an extra ordering edge between two already added commands
+            public Builder dependsOn(int command, int prerequisite) {
+                if (command < 0 || command >= commands.size()
+                        || prerequisite < 0 || prerequisite >= commands.size()) {
+                    throw new IllegalArgumentException("Unknown command index");
+                }
+                int[] current = prerequisites.get(command);
+                int[] extended = Arrays.copyOf(current, current.length + 1);
+                extended[current.length] = prerequisite;
+                prerequisites.set(command, extended);
+                return this;
+            }
+
+            public Builder executor(Executor executor) {
+                this.executor = executor;
+                return this;
+            }
+
+            public ParallelMacroCommand build() {
+                return new ParallelMacroCommand(this);
+            }
+        }
+    }
+
     // Null object pattern for empty slots
     public static class NoCommand implements Command {
         @Override
@@ -182,6 +539,9 @@ public class CommandPattern {
         private final Command[] offCommands;
         private final Stack<Command> commandHistory;
         private final int slots;
+        private CommandJournal journal;
+        private int depth; // history depth once every accepted press has run
+        private long applied; // last journal sequence that has run
 
         public RemoteControl(int slots) {
             this.slots = slots;
@@ -196,35 +556,163 @@ public class CommandPattern {
             }
         }
 
+        // Rebinding is journaled too, so replay can check it presses the same commands
         public void setCommand(int slot, Command onCommand, Command offCommand) {
             if (slot >= 0 && slot < slots) {
-                onCommands[slot] = onCommand;
-                offCommands[slot] = offCommand;
-                System.out.println("Slot " + slot + " configured: " + onCommand.getDescription());
+                journaled(CommandJournal.BIND, slot, CommandJournal.fingerprint(onCommand, offCommand), () -> {
+                    onCommands[slot] = onCommand;
+                    offCommands[slot] = offCommand;
+                    System.out.println("Slot " + slot + " configured: " + onCommand.getDescription());
+                });
+            }
+        }
+
+        // Button presses are journaled before they run; pass null to disable.
+        // Attaching a journal records the current slot bindings first
+        public void setJournal(CommandJournal journal) {
+            long last;
+            synchronized (this) {
+                this.journal = journal;
+                if (journal == null) {
+                    applied = 0;
+                    return;
+                }
+                last = journal.getRecordCount();
+                for (int slot = 0; slot < slots; slot++) {
+                    last = journal.append(CommandJournal.BIND, slot, binding(slot));
+                }
+                applied = last;
             }
+            journal.awaitDurable(last);
         }
 
         public void onButtonPressed(int slot) {
             if (slot >= 0 && slot < slots) {
-                onCommands[slot].execute();
-                commandHistory.push(onCommands[slot]);
+                journaled(CommandJournal.ON, slot, 0, () -> apply(CommandJournal.ON, slot));
             }
         }
 
         public void offButtonPressed(int slot) {
             if (slot >= 0 && slot < slots) {
-                offCommands[slot].execute();
-                commandHistory.push(offCommands[slot]);
+                journaled(CommandJournal.OFF, slot, 0, () -> apply(CommandJournal.OFF, slot));
             }
         }
 
         public void undoButtonPressed() {
-            if (!commandHistory.isEmpty()) {
-                Command lastCommand = commandHistory.pop();
-                lastCommand.undo();
-                System.out.println("Undoing: " + lastCommand.getDescription());
-            } else {
-                System.out.println("No commands to undo");
+            journaled(CommandJournal.UNDO, -1, 0, () -> apply(CommandJournal.UNDO, -1));
+        }
+
+        synchronized int binding(int slot) {
+            return CommandJournal.fingerprint(onCommands[slot], offCommands[slot]);
+        }
+
+        // Runs a command that is not bound to a slot (e.g. a scheduled one). It is not
+        // journaled, so it stays out of the undo history: otherwise a journaled undo would
+        // pop a different command live than it does on replay
+        public void execute(Command command) {
+            synchronized (this) {
+                command.execute();
+            }
+        }
+
+        private void journaled(byte op, int slot, int arg, Runnable effect) {
+            CommandJournal log;
+            long sequence;
+            synchronized (this) {
+                if (!reserve(op)) {
+                    return;
+                }
+                log = journal;
+                if (log == null) {
+                    effect.run();
+                    return;
+                }
+                // Write-ahead: the record goes into the journal first and the command only
+                // runs once it is durable, so a failed flush leaves the devices untouched
+                sequence = log.append(op, slot, arg);
+            }
+            try {
+                log.awaitDurable(sequence);
+            } catch (UncheckedIOException e) {
+                synchronized (this) {
+                    release(op);
+                }
+                throw e;
+            }
+            // The fsync wait happens outside the lock so callers can batch up; commands
+            // still run in journal order, which is the order replay will use
+            boolean interrupted = false;
+            synchronized (this) {
+                while (applied != sequence - 1) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                effect.run();
+                applied = sequence;
+                notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Counts the press against the history it will leave behind; returns false
+        // when there is nothing to do (an undo with an empty history)
+        private boolean reserve(byte op) {
+            switch (op) {
+                case CommandJournal.BIND -> {
+                    return true;
+                }
+                case CommandJournal.UNDO -> {
+                    if (depth == 0) {
+                        System.out.println("No commands to undo");
+                        return false;
+                    }
+                    depth--;
+                    return true;
+                }
+                default -> {
+                    depth++;
+                    return true;
+                }
+            }
+        }
+
+        private void release(byte op) {
+            if (op == CommandJournal.UNDO) {
+                depth++;
+            } else if (op != CommandJournal.BIND) {
+                depth--;
+            }
+        }
+
+        // Runs a recovered record without journaling it again
+        void replay(byte op, int slot) {
+            synchronized (this) {
+                if (reserve(op)) {
+                    apply(op, slot);
+                }
+            }
+        }
+
+        private void apply(byte op, int slot) {
+            switch (op) {
+                case CommandJournal.ON -> {
+                    onCommands[slot].execute();
+                    commandHistory.push(onCommands[slot]);
+                }
+                case CommandJournal.OFF -> {
+                    offCommands[slot].execute();
+                    commandHistory.push(offCommands[slot]);
+                }
+                default -> {
+                    Command lastCommand = commandHistory.pop();
+                    lastCommand.undo();
+                    System.out.println("Undoing: " + lastCommand.getDescription());
+                }
             }
         }
 
@@ -237,6 +725,555 @@ public class CommandPattern {
         }
     }
 
+    // Delayed and recurring commands on a hierarchical timing wheel
+    // Scheduling and cancelling are O(1); due commands are run through the RemoteControl
+    public static class CommandScheduler implements AutoCloseable {
+        private static final int WHEEL_BITS = 6;
+        private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+        private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+        private static final int LEVELS = 5; // 64^5 ticks, ~12 days at 1 ms per tick
+
+        private final RemoteControl remote;
+        private final long tickNanos;
+        private final ScheduledTask[][] buckets = new ScheduledTask[LEVELS][WHEEL_SIZE];
+        private long currentTick; // next tick to be processed
+        private int pending;
+        private ScheduledExecutorService driver;
+
+        public CommandScheduler(RemoteControl remote, long tickDuration, TimeUnit unit) {
+            if (tickDuration <= 0) {
+                throw new IllegalArgumentException("Tick duration must be positive");
+            }
+            this.remote = remote;
+            this.tickNanos = unit.toNanos(tickDuration);
+        }
+
+        public static final class ScheduledTask {
+            private final CommandScheduler owner;
+            private final Command command;
+            private final long periodTicks; // 0 for one-shot tasks
+            private long deadline;
+            private boolean cancelled;
+            private ScheduledTask previous;
+            private ScheduledTask next;
+            private int level = -1; // -1 when not linked into a bucket
+            private int index;
+
+            private ScheduledTask(CommandScheduler owner, Command command, long deadline, long periodTicks) {
+                this.owner = owner;
+                this.command = command;
+                this.deadline = deadline;
+                this.periodTicks = periodTicks;
+            }
+
+            public boolean cancel() {
+                return owner.cancel(this);
+            }
+
+            public boolean isCancelled() {
+                synchronized (owner) {
+                    return cancelled;
+                }
+            }
+
+            public Command getCommand() { return command; }
+        }
+
+        // Delays are measured from the wheel's current tick and rounded up to whole ticks
+        public synchronized ScheduledTask schedule(Command command, long delay, TimeUnit unit) {
+            ScheduledTask task = new ScheduledTask(this, command, deadlineAfter(toTicks(delay, unit)), 0);
+            link(task);
+            pending++;
+            return task;
+        }
+
+        public synchronized ScheduledTask scheduleAtFixedRate(Command command, long initialDelay,
+                                                              long period, TimeUnit unit) {
+            long periodTicks = toTicks(period, unit);
+            if (periodTicks <= 0) {
+                throw new IllegalArgumentException("Period must be positive");
+            }
+            ScheduledTask task = new ScheduledTask(this, command,
+                deadlineAfter(toTicks(initialDelay, unit)), periodTicks);
+            link(task);
+            pending++;
+            return task;
+        }
+
+        private long toTicks(long duration, TimeUnit unit) {
+            long nanos = unit.toNanos(Math.max(0, duration));
+            return (nanos + tickNanos - 1) / tickNanos;
+        }
+
+        // Tick t is processed when time moves from t to t + 1, so a task due in n ticks
+        // belongs to tick currentTick + n - 1 (zero-delay tasks run on the next tick)
+        private long deadlineAfter(long ticks) {
+            return currentTick + Math.max(0, ticks - 1);
+        }
+
+        private synchronized boolean cancel(ScheduledTask task) {
+            if (task.cancelled || (task.level < 0 && task.periodTicks == 0)) {
+                return false; // already cancelled or already fired
+            }
+            task.cancelled = true;
+            if (task.level >= 0) {
+                unlink(task);
+                pending--;
+            }
+            return true;
+        }
+
+        public synchronized int getPendingCount() {
+            return pending;
+        }
+
+        // Places a task in the lowest wheel whose span covers its remaining delay
+        private void link(ScheduledTask task) {
+            long deadline = Math.max(task.deadline, currentTick);
+            long delta = deadline - currentTick;
+            int level = 0;
+            while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+                level++;
+            }
+            if (delta >= 1L << (WHEEL_BITS * LEVELS)) {
+                // Beyond the top wheel: park in its furthest bucket and re-cascade from there
+                deadline = currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1;
+            }
+            int index = (int) (deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+            task.level = level;
+            task.index = index;
+            task.previous = null;
+            task.next = buckets[level][index];
+            if (task.next != null) {
+                task.next.previous = task;
+            }
+            buckets[level][index] = task;
+        }
+
+        private void unlink(ScheduledTask task) {
+            if (task.previous != null) {
+                task.previous.next = task.next;
+            } else {
+                buckets[task.level][task.index] = task.next;
+            }
+            if (task.next != null) {
+                task.next.previous = task.previous;
+            }
+            task.previous = null;
+            task.next = null;
+            task.level = -1;
+        }
+
+        private ScheduledTask detach(int level, int index) {
+            ScheduledTask head = buckets[level][index];
+            buckets[level][index] = null;
+            return head;
+        }
+
+        // Moves simulated time forward, running everything that falls due on the way
+        public void advance(long duration, TimeUnit unit) {
+            long target;
+            synchronized (this) {
+                target = currentTick + unit.toNanos(duration) / tickNanos;
+            }
+            advanceTo(target);
+        }
+
+        // Processes ticks until the wheel's time reaches targetTick
+        private void advanceTo(long targetTick) {
+            List<ScheduledTask> due = new ArrayList<>();
+            while (true) {
+                due.clear();
+                synchronized (this) {
+                    if (currentTick >= targetTick) {
+                        return;
+                    }
+                    collectDue(due);
+                }
+                for (ScheduledTask task : due) {
+                    remote.execute(task.command);
+                }
+            }
+        }
+
+        private void collectDue(List<ScheduledTask> due) {
+            long tick = currentTick;
+            // Cascade higher wheels first so their tasks can drop all the way down this tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    ScheduledTask task = detach(level, (int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                    while (task != null) {
+                        ScheduledTask next = task.next;
+                        link(task);
+                        task = next;
+                    }
+                }
+            }
+            ScheduledTask task = detach(0, (int) tick & WHEEL_MASK);
+            while (task != null) {
+                ScheduledTask next = task.next;
+                task.level = -1;
+                if (task.deadline > tick) {
+                    link(task);
+                } else {
+                    due.add(task);
+                    if (task.periodTicks > 0) {
+                        task.deadline += task.periodTicks;
+                        link(task);
+                    } else {
+                        pending--;
+                    }
+                }
+                task = next;
+            }
+            currentTick = tick + 1;
+        }
+
+        // Drives the wheel from the wall clock with a single background thread
+        public synchronized void start() {
+            if (driver != null) {
+                return;
+            }
+            long origin = System.nanoTime() - currentTick * tickNanos;
+            driver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "command-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            driver.scheduleAtFixedRate(() -> advanceTo((System.nanoTime() - origin) / tickNanos),
+                tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (driver != null) {
+                driver.shutdownNow();
+                driver = null;
+            }
+        }
+    }
+
+    // Write-ahead journal of button presses with group commit
+    // Record layout: [op:1][slot:4][arg:4][crc32:4]; a torn tail is dropped on open.
+    // BIND records carry a fingerprint of what a slot runs, written when a journal is
+    // attached and on every rebinding. Undone presses are dead weight, so once they
+    // dominate the file it is rewritten to the presses still in the undo history
+    public static class CommandJournal implements AutoCloseable {
+        static final byte ON = 1;
+        static final byte OFF = 2;
+        static final byte UNDO = 3;
+        static final byte BIND = 4;
+
+        private static final int MAGIC = 0x434D4A32; // "CMJ2"
+        private static final int HEADER_SIZE = Integer.BYTES;
+        private static final int RECORD_SIZE = 1 + Integer.BYTES + Integer.BYTES + Integer.BYTES;
+        private static final int COMPACT_MIN_RECORDS = 4096;
+
+        private final Path path;
+        private FileChannel channel;
+        private long recoveredEnd;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * 512);
+        private ByteBuffer spare = ByteBuffer.allocate(RECORD_SIZE * 512);
+        private long appendedSequence;
+        private long durableSequence;
+        private boolean flushInProgress;
+        private IOException failure;
+        private long commits;
+
+        // What the durable records add up to; only touched by open, close and the flusher
+        private final ArrayDeque<int[]> live = new ArrayDeque<>(); // {op, slot, binding}
+        private final Map<Integer, Integer> bindings = new TreeMap<>();
+        private long records;
+
+        private CommandJournal(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        public static CommandJournal open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            CommandJournal journal = new CommandJournal(path, channel);
+            try {
+                long end = journal.recover();
+                channel.truncate(end);
+                channel.position(end);
+                journal.recoveredEnd = end;
+                if (journal.needsCompaction()) {
+                    journal.compact();
+                }
+                return journal;
+            } catch (IOException | RuntimeException e) {
+                journal.channel.close();
+                throw e;
+            }
+        }
+
+        // Identifies what a slot runs, so replay can tell when the remote was rebound
+        static int fingerprint(Command onCommand, Command offCommand) {
+            CRC32 checksum = new CRC32();
+            String binding = onCommand.getClass().getName() + '\n' + onCommand.getDescription() + '\n'
+                + offCommand.getClass().getName() + '\n' + offCommand.getDescription();
+            checksum.update(binding.getBytes(StandardCharsets.UTF_8));
+            return (int) checksum.getValue();
+        }
+
+        // Scans the journal and returns the offset just past the last intact record
+        private long recover() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE) {
+                header.clear().putInt(MAGIC).flip();
+                channel.write(header, 0);
+                channel.force(true);
+                return HEADER_SIZE;
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a command journal");
+            }
+            scan(channel, HEADER_SIZE, channel.size(), this::track);
+            return HEADER_SIZE + records * RECORD_SIZE;
+        }
+
+        private interface RecordVisitor {
+            void visit(byte op, int slot, int arg) throws IOException;
+        }
+
+        private static void scan(FileChannel channel, long from, long to, RecordVisitor visitor)
+                throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            CRC32 checksum = new CRC32();
+            long position = from;
+            while (position < to) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), to - position));
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    return;
+                }
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    int start = buffer.position();
+                    byte op = buffer.get();
+                    int slot = buffer.getInt();
+                    int arg = buffer.getInt();
+                    checksum.reset();
+                    checksum.update(buffer.array(), start, RECORD_SIZE - Integer.BYTES);
+                    if (buffer.getInt() != (int) checksum.getValue() || op < ON || op > BIND) {
+                        return;
+                    }
+                    visitor.visit(op, slot, arg);
+                    position += RECORD_SIZE;
+                }
+                if (buffer.hasRemaining()) {
+                    return; // partial record at the tail
+                }
+            }
+        }
+
+        // Re-applies every recovered record to a remote configured like the one that wrote them
+        public int replay(RemoteControl remote) throws IOException {
+            // Check every record first so a mismatched remote fails before anything runs
+            Map<Integer, Integer> journaled = new HashMap<>();
+            int[] checked = {0};
+            scan(channel, HEADER_SIZE, recoveredEnd, (op, slot, arg) -> {
+                if (op == BIND) {
+                    journaled.put(slot, arg);
+                } else if (op != UNDO) {
+                    if (slot < 0 || slot >= remote.slots) {
+                        throw new IOException("Journal record " + checked[0] + " targets slot " + slot
+                            + " but the remote has " + remote.slots + " slots");
+                    }
+                    Integer binding = journaled.get(slot);
+                    if (binding == null || binding != remote.binding(slot)) {
+                        throw new IOException("Journal record " + checked[0] + " presses slot " + slot
+                            + ", which was bound to different commands when it was journaled;"
+                            + " the remote's slot now runs " + remote.onCommands[slot].getDescription());
+                    }
+                }
+                checked[0]++;
+            });
+            int[] replayed = {0};
+            scan(channel, HEADER_SIZE, recoveredEnd, (op, slot, arg) -> {
+                if (op != BIND) {
+                    remote.replay(op, slot);
+                    replayed[0]++;
+                }
+            });
+            System.out.println("Replayed " + replayed[0] + " journaled commands");
+            return replayed[0];
+        }
+
+        synchronized long append(byte op, int slot, int arg) {
+            if (pending.remaining() < RECORD_SIZE) {
+                ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            put(pending, crc, op, slot, arg);
+            return ++appendedSequence;
+        }
+
+        private static void put(ByteBuffer buffer, CRC32 checksum, byte op, int slot, int arg) {
+            int start = buffer.position();
+            buffer.put(op).putInt(slot).putInt(arg);
+            checksum.reset();
+            checksum.update(buffer.array(), start, RECORD_SIZE - Integer.BYTES);
+            buffer.putInt((int) checksum.getValue());
+        }
+
+        // Blocks until the record is on disk; the first waiter flushes everything
+        // appended so far and the others ride along in the same fsync
+        void awaitDurable(long sequence) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    ByteBuffer batch;
+                    long target;
+                    synchronized (this) {
+                        while (true) {
+                            // Records from an earlier successful flush stay durable after a failure
+                            if (durableSequence >= sequence) {
+                                return;
+                            }
+                            if (failure != null) {
+                                throw new UncheckedIOException(failure);
+                            }
+                            if (!flushInProgress) {
+                                break;
+                            }
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                            }
+                        }
+                        flushInProgress = true;
+                        batch = pending;
+                        pending = spare;
+                        target = appendedSequence;
+                    }
+                    IOException error = null;
+                    boolean durable = false;
+                    try {
+                        batch.flip();
+                        while (batch.hasRemaining()) {
+                            channel.write(batch);
+                        }
+                        channel.force(false);
+                        durable = true;
+                        for (int at = 0; at < batch.limit(); at += RECORD_SIZE) {
+                            track(batch.get(at), batch.getInt(at + 1), batch.getInt(at + 1 + Integer.BYTES));
+                        }
+                        if (needsCompaction()) {
+                            compact();
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    synchronized (this) {
+                        batch.clear();
+                        spare = batch;
+                        flushInProgress = false;
+                        if (durable) {
+                            durableSequence = target;
+                            commits++;
+                        }
+                        if (error != null) {
+                            failure = error;
+                        }
+                        notifyAll();
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Replays a record against the live state without running anything
+        private void track(byte op, int slot, int arg) {
+            records++;
+            switch (op) {
+                case BIND -> bindings.put(slot, arg);
+                case UNDO -> live.pollLast();
+                default -> live.addLast(new int[] {op, slot, bindings.getOrDefault(slot, 0)});
+            }
+        }
+
+        private boolean needsCompaction() {
+            return records > COMPACT_MIN_RECORDS && records > 2L * (live.size() + bindings.size());
+        }
+
+        // Rewrites the journal as the presses still in the undo history plus the bindings
+        // they ran under. Replaying it leaves devices and history as the full journal would,
+        // provided every undo exactly reverses its command
+        private void compact() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                + RECORD_SIZE * (2 * live.size() + bindings.size()));
+            buffer.putInt(MAGIC);
+            CRC32 checksum = new CRC32();
+            Map<Integer, Integer> written = new HashMap<>();
+            long count = 0;
+            for (int[] press : live) {
+                if (!Objects.equals(written.put(press[1], press[2]), press[2])) {
+                    put(buffer, checksum, BIND, press[1], press[2]);
+                    count++;
+                }
+                put(buffer, checksum, (byte) press[0], press[1], 0);
+                count++;
+            }
+            for (Map.Entry<Integer, Integer> binding : bindings.entrySet()) {
+                if (!binding.getValue().equals(written.get(binding.getKey()))) {
+                    put(buffer, checksum, BIND, binding.getKey(), binding.getValue());
+                    count++;
+                }
+            }
+            buffer.flip();
+            Path temp = path.resolveSibling(path.getFileName() + ".compact");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            FileChannel old = channel;
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            old.close();
+            records = count;
+            recoveredEnd = channel.size();
+        }
+
+        public synchronized long getCommitCount() {
+            return commits;
+        }
+
+        public synchronized long getRecordCount() {
+            return appendedSequence;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long last;
+            synchronized (this) {
+                last = appendedSequence;
+            }
+            try {
+                awaitDurable(last);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
     public static void main(String[] args) {
         System.out.println("=== Command Pattern Demo ===");
 
@@ -284,5 +1321,101 @@ public class CommandPattern {
         System.out.println("\n--- Testing Macro Command ---");
         remote.onButtonPressed(3);  // Party mode on
         remote.undoButtonPressed(); // Undo party mode
+
+        System.out.println("\n--- Testing Parallel Macro Command ---");
+        // Lights are independent; the fan waits for the living room light
+        ParallelMacroCommand scene = new ParallelMacroCommand.Builder()
+            .add(livingRoomLightOn)
+            .add(kitchenLightOn)
+            .add(fanHigh, 0)
+            .build();
+        scene.execute();
+        scene.undo();
+
+        System.out.println("\n--- Testing Bulk Scene Commands ---");
+        DeviceRegistry building = new DeviceRegistry(100_000, 20_000);
+        MacroCommand eveningScene = new MacroCommand(new Command[] {
+            new BulkLightCommand(building, 0, 60_000, true),
+            new BulkFanSpeedCommand(building, 0, 20_000, 1)
+        });
+        eveningScene.execute();
+        System.out.println("Lights on: " + building.countLightsOn() + ", fan 0 speed: " + building.getFanSpeed(0));
+        eveningScene.undo();
+        System.out.println("Lights on: " + building.countLightsOn() + ", fan 0 speed: " + building.getFanSpeed(0));
+        // Per-device values: alternate lights, fans ramping up
+        boolean[] readingLights = new boolean[8];
+        int[] readingFans = new int[4];
+        for (int i = 0; i < readingLights.length; i++) {
+            readingLights[i] = i % 2 == 0;
+        }
+        for (int i = 0; i < readingFans.length; i++) {
+            readingFans[i] = i;
+        }
+        SceneCommand readingScene = new SceneCommand(building, 100, readingLights, 10, readingFans);
+        readingScene.execute();
+        System.out.println("Lights on: " + building.countLightsOn() + ", fan 13 speed: " + building.getFanSpeed(13));
+        readingScene.undo();
+
+        System.out.println("\n--- Testing Command Scheduler ---");
+        // One tick per minute; the clock is advanced by hand to simulate two days
+        try (CommandScheduler scheduler = new CommandScheduler(remote, 1, TimeUnit.MINUTES)) {
+            scheduler.schedule(fanOff, 30, TimeUnit.MINUTES);
+            scheduler.scheduleAtFixedRate(kitchenLightOn, 7, 24, TimeUnit.HOURS);
+            CommandScheduler.ScheduledTask cancelled = scheduler.schedule(livingRoomLightOff, 1, TimeUnit.HOURS);
+            cancelled.cancel();
+            scheduler.advance(2, TimeUnit.DAYS);
+            System.out.println("Pending scheduled commands: " + scheduler.getPendingCount());
+        }
+
+        System.out.println("\n--- Testing Command Journal ---");
+        try {
+            Path journalFile = java.nio.file.Files.createTempFile("remote", ".journal");
+            try (CommandJournal journal = CommandJournal.open(journalFile)) {
+                remote.setJournal(journal);
+                Thread[] presses = new Thread[4];
+                for (int i = 0; i < presses.length; i++) {
+                    int slot = i % 3;
+                    presses[i] = new Thread(() -> remote.onButtonPressed(slot));
+                    presses[i].start();
+                }
+                for (Thread press : presses) {
+                    press.join();
+                }
+                remote.offButtonPressed(2);
+                remote.setJournal(null);
+                System.out.println("Journaled " + journal.getRecordCount() + " records in "
+                    + journal.getCommitCount() + " group commits");
+            }
+
+            // Simulate a restart: fresh devices, same slot layout, replay the journal
+            Light recoveredLight = new Light("Living Room");
+            Light recoveredKitchen = new Light("Kitchen");
+            Fan recoveredFan = new Fan("Bedroom");
+            RemoteControl recovered = new RemoteControl(3);
+            recovered.setCommand(0, new LightOnCommand(recoveredLight), new LightOffCommand(recoveredLight));
+            recovered.setCommand(1, new LightOnCommand(recoveredKitchen), new LightOffCommand(recoveredKitchen));
+            recovered.setCommand(2, new FanSpeedCommand(recoveredFan, 3), new FanSpeedCommand(recoveredFan, 0));
+            try (CommandJournal journal = CommandJournal.open(journalFile)) {
+                journal.replay(recovered);
+            }
+            System.out.println("Recovered: living room " + (recoveredLight.isOn() ? "ON" : "OFF")
+                + ", kitchen " + (recoveredKitchen.isOn() ? "ON" : "OFF")
+                + ", fan speed " + recoveredFan.getSpeed());
+
+            // A remote with the lights swapped would press the wrong commands
+            RemoteControl rewired = new RemoteControl(3);
+            rewired.setCommand(0, new LightOnCommand(recoveredKitchen), new LightOffCommand(recoveredKitchen));
+            rewired.setCommand(1, new LightOnCommand(recoveredLight), new LightOffCommand(recoveredLight));
+            try (CommandJournal journal = CommandJournal.open(journalFile)) {
+                journal.replay(rewired);
+            } catch (IOException e) {
+                System.out.println("Replay refused: " + e.getMessage());
+            }
+            java.nio.file.Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -1,8 +1,32 @@
 package com.cuizhanming.oop.behavioral;
 
-import java.util.Stack;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 /**
  * Interpreter Pattern - Defines grammar for a language and interprets sentences
@@ -15,23 +39,241 @@ public class InterpreterPattern {
         int interpret(Context context);
     }
 
+    // Variable names resolved to dense int slots, shared by a parser and its contexts.
+    // Lookups are lock-free; only assigning a new slot takes the lock.
+    public static class SymbolTable {
+        private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[0];
+
+        // Returns the variable's slot, assigning the next free one on first sight
+        public int resolve(String name) {
+            Integer slot = slots.get(name);
+            return slot != null ? slot : assign(name);
+        }
+
+        private synchronized int assign(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                String[] grown = Arrays.copyOf(names, names.length + 1);
+                slot = names.length;
+                grown[slot] = name;
+                names = grown;
+                slots.put(name, slot);
+            }
+            return slot;
+        }
+
+        // Returns the variable's slot, or -1 if it was never resolved
+        public int lookup(String name) {
+            return slots.getOrDefault(name, -1);
+        }
+
+        public String nameOf(int slot) {
+            return names[slot];
+        }
+
+        public int size() {
+            return names.length;
+        }
+    }
+
+    // Told about every variable whose value actually changes
+    public interface ContextListener {
+        void variableChanged(int slot);
+    }
+
     // Context class
+    // Values live in an int[] indexed by SymbolTable slot; names are resolved once
     public static class Context {
-        private final Map<String, Integer> variables = new HashMap<>();
+        private final SymbolTable symbols;
+        private final BitSet assigned;
+        private final List<ContextListener> listeners = new CopyOnWriteArrayList<>();
+        private int[] values;
+
+        public Context() {
+            this(new SymbolTable());
+        }
+
+        public Context(SymbolTable symbols) {
+            this(symbols, new int[8], new BitSet());
+        }
+
+        private Context(SymbolTable symbols, int[] values, BitSet assigned) {
+            this.symbols = symbols;
+            this.values = values;
+            this.assigned = assigned;
+        }
+
+        public SymbolTable getSymbols() {
+            return symbols;
+        }
 
         public void setVariable(String name, int value) {
-            variables.put(name, value);
+            setSlot(symbols.resolve(name), value);
         }
 
         public int getVariable(String name) {
-            return variables.getOrDefault(name, 0);
+            int slot = symbols.lookup(name);
+            return slot < 0 ? 0 : getSlot(slot);
+        }
+
+        public void setSlot(int slot, int value) {
+            if (slot >= values.length) {
+                values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+            }
+            if (assigned.get(slot) && values[slot] == value) {
+                return;
+            }
+            values[slot] = value;
+            assigned.set(slot);
+            notifyListeners(slot);
+        }
+
+        void notifyListeners(int slot) {
+            for (ContextListener listener : listeners) {
+                listener.variableChanged(slot);
+            }
+        }
+
+        // The context an evaluation should read; versioned contexts pin one snapshot
+        Context readView() {
+            return this;
+        }
+
+        public void addListener(ContextListener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeListener(ContextListener listener) {
+            listeners.remove(listener);
+        }
+
+        // Unset variables read as 0, as before
+        public int getSlot(int slot) {
+            int[] values = this.values;
+            return slot < values.length ? values[slot] : 0;
         }
 
         public void showVariables() {
+            StringJoiner variables = new StringJoiner(", ", "{", "}");
+            for (int slot = assigned.nextSetBit(0); slot >= 0; slot = assigned.nextSetBit(slot + 1)) {
+                variables.add(symbols.nameOf(slot) + "=" + values[slot]);
+            }
             System.out.println("Variables: " + variables);
         }
     }
 
+    // Context for many evaluator threads and concurrent writers. Every write publishes a
+    // new immutable version with one compareAndSet, copying the values on write; readers
+    // never lock. snapshot() pins a version so a whole evaluation sees one consistent set
+    // of variables, and setVariables publishes several changes as a single version.
+    public static class VersionedContext extends Context {
+        private final AtomicReference<Version> current =
+            new AtomicReference<>(new Version(0, new int[0], new BitSet()));
+
+        // Never mutated once published
+        private record Version(long number, int[] values, BitSet assigned) {
+        }
+
+        public VersionedContext() {
+            this(new SymbolTable());
+        }
+
+        public VersionedContext(SymbolTable symbols) {
+            super(symbols, null, null);
+        }
+
+        // O(1): the snapshot shares the version's arrays
+        public Snapshot snapshot() {
+            return new Snapshot(getSymbols(), current.get());
+        }
+
+        public long getVersion() {
+            return current.get().number;
+        }
+
+        @Override
+        Context readView() {
+            return snapshot();
+        }
+
+        @Override
+        public int getSlot(int slot) {
+            int[] values = current.get().values;
+            return slot < values.length ? values[slot] : 0;
+        }
+
+        @Override
+        public void setSlot(int slot, int value) {
+            publish(new int[] {slot}, new int[] {value});
+        }
+
+        public void setVariables(Map<String, Integer> variables) {
+            int[] slots = new int[variables.size()];
+            int[] values = new int[slots.length];
+            int i = 0;
+            for (Map.Entry<String, Integer> variable : variables.entrySet()) {
+                slots[i] = getSymbols().resolve(variable.getKey());
+                values[i++] = variable.getValue();
+            }
+            publish(slots, values);
+        }
+
+        private void publish(int[] slots, int[] values) {
+            BitSet changed;
+            while (true) {
+                Version version = current.get();
+                changed = new BitSet();
+                int length = version.values.length;
+                for (int i = 0; i < slots.length; i++) {
+                    if (!version.assigned.get(slots[i]) || version.values[slots[i]] != values[i]) {
+                        changed.set(slots[i]);
+                        length = Math.max(length, slots[i] + 1);
+                    }
+                }
+                if (changed.isEmpty()) {
+                    return;
+                }
+                int[] nextValues = Arrays.copyOf(version.values, length);
+                BitSet nextAssigned = (BitSet) version.assigned.clone();
+                for (int i = 0; i < slots.length; i++) {
+                    nextValues[slots[i]] = values[i];
+                    nextAssigned.set(slots[i]);
+                }
+                if (current.compareAndSet(version, new Version(version.number + 1, nextValues, nextAssigned))) {
+                    break;
+                }
+            }
+            for (int slot = changed.nextSetBit(0); slot >= 0; slot = changed.nextSetBit(slot + 1)) {
+                notifyListeners(slot);
+            }
+        }
+
+        @Override
+        public void showVariables() {
+            snapshot().showVariables();
+        }
+    }
+
+    // A read-only view of one VersionedContext version
+    public static final class Snapshot extends Context {
+        private final long version;
+
+        private Snapshot(SymbolTable symbols, VersionedContext.Version version) {
+            super(symbols, version.values(), version.assigned());
+            this.version = version.number();
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public void setSlot(int slot, int value) {
+            throw new UnsupportedOperationException("Snapshot version " + version + " is read-only");
+        }
+    }
+
     // Terminal expressions
     public static class NumberExpression implements Expression {
         private final int number;
@@ -53,13 +295,27 @@ public class InterpreterPattern {
 
     public static class VariableExpression implements Expression {
         private final String variable;
+        private final SymbolTable symbols; // null when unresolved
+        private final int slot;
 
         public VariableExpression(String variable) {
             this.variable = variable;
+            this.symbols = null;
+            this.slot = -1;
         }
 
+        public VariableExpression(String variable, SymbolTable symbols) {
+            this.variable = variable;
+            this.symbols = symbols;
+            this.slot = symbols.resolve(variable);
+        }
+
+        // Array read when the context shares the parser's symbol table, lookup by name otherwise
         @Override
         public int interpret(Context context) {
+            if (context.symbols == symbols) {
+                return context.getSlot(slot);
+            }
             return context.getVariable(variable);
         }
 
@@ -131,46 +387,1146 @@ public class InterpreterPattern {
     }
 
     // Expression parser
+    // Single-pass scanner over the text: integers are parsed in place and operands are
+    // kept on an array-backed stack, so a reused parser allocates only the output nodes.
+    // The static parse methods reuse one parser per thread. Empty input and operators
+    // short of operands throw IllegalArgumentException.
     public static class ExpressionParser {
+        private static final ThreadLocal<ExpressionParser> PARSERS = ThreadLocal.withInitial(ExpressionParser::new);
+
+        private final SymbolTable symbols; // null leaves variables unresolved
+        private Expression[] stack = new Expression[16];
+        private int size;
+
+        public ExpressionParser() {
+            this(null);
+        }
+
+        public ExpressionParser(SymbolTable symbols) {
+            this.symbols = symbols;
+        }
 
         public static Expression parse(String expression) {
-            Stack<Expression> stack = new Stack<>();
-            String[] tokens = expression.split("\\s+");
+            return parse(expression, null);
+        }
+
+        // Resolves variables to slots in symbols, so evaluation never looks up names
+        public static Expression parse(CharSequence expression, SymbolTable symbols) {
+            return PARSERS.get().read(expression, 0, expression.length(), symbols);
+        }
 
-            for (String token : tokens) {
-                switch (token) {
-                    case "+" -> {
-                        Expression right = stack.pop();
-                        Expression left = stack.pop();
-                        stack.push(new AddExpression(left, right));
+        // Parses text[start, end), e.g. one line of a larger buffer, without copying it
+        public Expression read(CharSequence text, int start, int end) {
+            return read(text, start, end, symbols);
+        }
+
+        private Expression read(CharSequence text, int start, int end, SymbolTable symbols) {
+            try {
+                int i = start;
+                while (true) {
+                    while (i < end && isWhitespace(text.charAt(i))) {
+                        i++;
                     }
-                    case "-" -> {
-                        Expression right = stack.pop();
-                        Expression left = stack.pop();
-                        stack.push(new SubtractExpression(left, right));
+                    if (i == end) {
+                        break;
                     }
-                    case "*" -> {
-                        Expression right = stack.pop();
-                        Expression left = stack.pop();
-                        stack.push(new MultiplyExpression(left, right));
+                    int tokenStart = i;
+                    while (i < end && !isWhitespace(text.charAt(i))) {
+                        i++;
                     }
-                    default -> {
-                        if (token.matches("\\d+")) {
-                            stack.push(new NumberExpression(Integer.parseInt(token)));
-                        } else {
-                            stack.push(new VariableExpression(token));
-                        }
+                    token(text, tokenStart, i, symbols);
+                }
+                if (size == 0) {
+                    throw new IllegalArgumentException("Empty expression");
+                }
+                return pop();
+            } finally {
+                // Don't keep the caller's nodes reachable from a reused parser
+                Arrays.fill(stack, 0, size, null);
+                size = 0;
+            }
+        }
+
+        private void token(CharSequence text, int from, int to, SymbolTable symbols) {
+            if (to - from == 1) {
+                char c = text.charAt(from);
+                if (c == '+' || c == '-' || c == '*') {
+                    if (size < 2) {
+                        throw new IllegalArgumentException("Operator '" + c + "' at offset " + from
+                            + " needs two operands");
                     }
+                    Expression right = pop();
+                    Expression left = pop();
+                    push(c == '+' ? new AddExpression(left, right)
+                        : c == '-' ? new SubtractExpression(left, right)
+                        : new MultiplyExpression(left, right));
+                    return;
                 }
             }
+            int value = 0;
+            int i = from;
+            for (; i < to; i++) {
+                int digit = text.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                if (value > (Integer.MAX_VALUE - digit) / 10) {
+                    throw new NumberFormatException("For input string: \"" + text.subSequence(from, to) + "\"");
+                }
+                value = value * 10 + digit;
+            }
+            if (i == to) {
+                push(new NumberExpression(value));
+            } else {
+                String name = text.subSequence(from, to).toString();
+                push(symbols == null ? new VariableExpression(name) : new VariableExpression(name, symbols));
+            }
+        }
+
+        // The characters matched by the regex \s
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+        }
+
+        private void push(Expression expression) {
+            if (size == stack.length) {
+                stack = Arrays.copyOf(stack, size * 2);
+            }
+            stack[size++] = expression;
+        }
 
-            return stack.pop();
+        private Expression pop() {
+            Expression expression = stack[--size];
+            stack[size] = null;
+            return expression;
+        }
+    }
+
+    // Rewrites a parsed tree before evaluation: folds constant subtrees, applies the
+    // identities x+0, x-0, x*1, x*0 and x-x, and hash-conses structurally equal subtrees
+    // into one shared node. The tree walk still visits a shared node once per use; the
+    // compiled forms evaluate it once and keep the result in a temporary.
+    public static class ExpressionOptimizer {
+        private static final int NUMBER = 0;
+        private static final int VARIABLE = 1;
+        private static final int ADD = 2;
+        private static final int SUBTRACT = 3;
+        private static final int MULTIPLY = 4;
+
+        // Children are already interned, so identity equality on them is structural;
+        // a variable's key is its name and symbol table
+        private record Key(int kind, Object operand, Object left, Object right) {
+        }
+
+        private final Map<Key, Expression> nodes = new HashMap<>();
+        // Input nodes already rewritten, so an input that is itself shared stays linear
+        private final Map<Expression, Expression> rewritten = new IdentityHashMap<>();
+
+        private ExpressionOptimizer() {
+        }
+
+        public static Expression optimize(Expression expression) {
+            return new ExpressionOptimizer().rewrite(expression);
+        }
+
+        private Expression rewrite(Expression expression) {
+            Expression result = rewritten.get(expression);
+            if (result == null) {
+                result = rewriteNode(expression);
+                rewritten.put(expression, result);
+            }
+            return result;
+        }
+
+        private Expression rewriteNode(Expression expression) {
+            if (expression instanceof NumberExpression number) {
+                return nodes.computeIfAbsent(new Key(NUMBER, number.number, null, null), key -> number);
+            }
+            if (expression instanceof VariableExpression variable) {
+                Key key = new Key(VARIABLE, variable.variable, variable.symbols, null);
+                return nodes.computeIfAbsent(key, k -> variable);
+            }
+            if (expression instanceof AddExpression add) {
+                return combine(ADD, rewrite(add.left), rewrite(add.right));
+            }
+            if (expression instanceof SubtractExpression subtract) {
+                return combine(SUBTRACT, rewrite(subtract.left), rewrite(subtract.right));
+            }
+            if (expression instanceof MultiplyExpression multiply) {
+                return combine(MULTIPLY, rewrite(multiply.left), rewrite(multiply.right));
+            }
+            return expression; // unknown node types are left as they are
+        }
+
+        private Expression combine(int kind, Expression left, Expression right) {
+            if (left instanceof NumberExpression l && right instanceof NumberExpression r) {
+                int value = switch (kind) {
+                    case ADD -> l.number + r.number;
+                    case SUBTRACT -> l.number - r.number;
+                    default -> l.number * r.number;
+                };
+                return number(value);
+            }
+            switch (kind) {
+                case ADD -> {
+                    if (isConstant(left, 0)) {
+                        return right;
+                    }
+                    if (isConstant(right, 0)) {
+                        return left;
+                    }
+                }
+                case SUBTRACT -> {
+                    if (isConstant(right, 0)) {
+                        return left;
+                    }
+                    if (left == right) {
+                        return number(0);
+                    }
+                }
+                default -> {
+                    if (isConstant(left, 0) || isConstant(right, 0)) {
+                        return number(0);
+                    }
+                    if (isConstant(left, 1)) {
+                        return right;
+                    }
+                    if (isConstant(right, 1)) {
+                        return left;
+                    }
+                }
+            }
+            Key key = new Key(kind, null, left, right);
+            Expression node = nodes.get(key);
+            if (node == null) {
+                node = switch (kind) {
+                    case ADD -> new AddExpression(left, right);
+                    case SUBTRACT -> new SubtractExpression(left, right);
+                    default -> new MultiplyExpression(left, right);
+                };
+                nodes.put(key, node);
+            }
+            return node;
+        }
+
+        private Expression number(int value) {
+            return nodes.computeIfAbsent(new Key(NUMBER, value, null, null), key -> new NumberExpression(value));
+        }
+
+        private static boolean isConstant(Expression expression, int value) {
+            return expression instanceof NumberExpression number && number.number == value;
+        }
+
+        // Operator nodes reached along more than one path of a hash-consed tree
+        static Set<Expression> sharedSubexpressions(Expression root) {
+            Map<Expression, Boolean> seen = new IdentityHashMap<>();
+            Set<Expression> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<Expression> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Expression expression = pending.pop();
+                if (expression instanceof NumberExpression || expression instanceof VariableExpression) {
+                    continue;
+                }
+                if (seen.put(expression, Boolean.TRUE) != null) {
+                    shared.add(expression);
+                } else if (expression instanceof AddExpression add) {
+                    pending.push(add.left);
+                    pending.push(add.right);
+                } else if (expression instanceof SubtractExpression subtract) {
+                    pending.push(subtract.left);
+                    pending.push(subtract.right);
+                } else if (expression instanceof MultiplyExpression multiply) {
+                    pending.push(multiply.left);
+                    pending.push(multiply.right);
+                }
+            }
+            return shared;
+        }
+    }
+
+    // Compiled form of an expression: variables are read from an int[] by slot
+    public interface Formula {
+        int evaluate(int[] slots);
+    }
+
+    // A formula plus the variable name bound to each of its slots
+    public static class CompiledExpression {
+        private final Formula formula;
+        private final String[] variables;
+
+        private CompiledExpression(Formula formula, String[] variables) {
+            this.formula = formula;
+            this.variables = variables;
+        }
+
+        public int evaluate(int[] slots) {
+            return formula.evaluate(slots);
+        }
+
+        // Gathers the slots from a context; hot loops should reuse their own int[]
+        public int evaluate(Context context) {
+            Context view = context.readView();
+            int[] slots = new int[variables.length];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = view.getVariable(variables[i]);
+            }
+            return formula.evaluate(slots);
+        }
+
+        public int slotOf(String variable) {
+            for (int i = 0; i < variables.length; i++) {
+                if (variables[i].equals(variable)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public List<String> getVariables() {
+            return List.of(variables);
+        }
+    }
+
+    // Compiles an expression tree to a hidden class whose evaluate method is the whole
+    // formula as straight-line bytecode, so the JIT sees one small method instead of a
+    // virtual call per node. The class file is written by hand: it has one constant
+    // pool, a constructor and evaluate, and no branches, so it needs no stack maps.
+    public static class ExpressionCompiler {
+        private static final int MAX_CODE_LENGTH = 65535;
+        private static final String FORMULA = Formula.class.getName().replace('.', '/');
+        private static final String CLASS_NAME =
+            InterpreterPattern.class.getName().replace('.', '/') + "$CompiledFormula";
+
+        // Fixed constant pool entries, in the order they are written
+        private static final int THIS_CLASS = 2;
+        private static final int OBJECT_CLASS = 4;
+        private static final int FORMULA_CLASS = 6;
+        private static final int INIT_NAME = 7;
+        private static final int VOID_DESCRIPTOR = 8;
+        private static final int OBJECT_INIT = 10;
+        private static final int EVALUATE_NAME = 11;
+        private static final int EVALUATE_DESCRIPTOR = 12;
+        private static final int CODE = 13;
+        private static final int FIXED_ENTRIES = 13;
+
+        private final Map<String, Integer> slots = new LinkedHashMap<>();
+        private final Map<Integer, Integer> intConstants = new LinkedHashMap<>();
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final Set<Expression> shared;
+        // Shared subexpressions already computed, by local variable index
+        private final Map<Expression, Integer> temporaries = new IdentityHashMap<>();
+
+        private ExpressionCompiler(Expression expression) {
+            this.shared = ExpressionOptimizer.sharedSubexpressions(expression);
+        }
+
+        public static CompiledExpression compile(Expression expression) {
+            ExpressionCompiler compiler = new ExpressionCompiler(expression);
+            int maxStack = compiler.emit(expression);
+            compiler.code.write(0xac); // ireturn
+            if (compiler.code.size() > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Expression too large to compile: " + expression);
+            }
+            byte[] classFile = compiler.classFile(maxStack);
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+                Formula formula = (Formula) lookup
+                    .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+                return new CompiledExpression(formula, compiler.slots.keySet().toArray(new String[0]));
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot define compiled formula", e);
+            }
+        }
+
+        // Emits code leaving the value on the operand stack; returns the stack depth used
+        private int emit(Expression expression) {
+            Integer temporary = temporaries.get(expression);
+            if (temporary != null) {
+                local(0x15, temporary); // iload
+                return 1;
+            }
+            if (expression instanceof NumberExpression number) {
+                pushInt(number.number);
+                return 1;
+            }
+            if (expression instanceof VariableExpression variable) {
+                code.write(0x2b); // aload_1
+                pushInt(slots.computeIfAbsent(variable.variable, name -> slots.size()));
+                code.write(0x2e); // iaload
+                return 2;
+            }
+            Expression left;
+            Expression right;
+            int opcode;
+            if (expression instanceof AddExpression add) {
+                left = add.left;
+                right = add.right;
+                opcode = 0x60; // iadd
+            } else if (expression instanceof SubtractExpression subtract) {
+                left = subtract.left;
+                right = subtract.right;
+                opcode = 0x64; // isub
+            } else if (expression instanceof MultiplyExpression multiply) {
+                left = multiply.left;
+                right = multiply.right;
+                opcode = 0x68; // imul
+            } else {
+                throw new IllegalArgumentException("Cannot compile " + expression.getClass().getSimpleName());
+            }
+            int leftDepth = emit(left);
+            int rightDepth = emit(right);
+            code.write(opcode);
+            int depth = Math.max(leftDepth, 1 + rightDepth);
+            if (shared.contains(expression)) {
+                int index = 2 + temporaries.size(); // after this and slots
+                temporaries.put(expression, index);
+                code.write(0x59); // dup
+                local(0x36, index); // istore
+                depth = Math.max(depth, 2);
+            }
+            return depth;
+        }
+
+        private void local(int opcode, int index) {
+            if (index > 255) {
+                code.write(0xc4); // wide
+                code.write(opcode);
+                code.write(index >> 8);
+            } else {
+                code.write(opcode);
+            }
+            code.write(index);
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                code.write(0x03 + value); // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(0x10); // bipush
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(0x11); // sipush
+                code.write(value >> 8);
+                code.write(value);
+            } else {
+                int index = intConstants.computeIfAbsent(value,
+                    constant -> FIXED_ENTRIES + 1 + intConstants.size());
+                code.write(0x13); // ldc_w
+                code.write(index >> 8);
+                code.write(index);
+            }
+        }
+
+        private byte[] classFile(int maxStack) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(61); // Java 17
+                out.writeShort(FIXED_ENTRIES + intConstants.size() + 1);
+                utf8(out, CLASS_NAME);
+                classRef(out, 1);
+                utf8(out, "java/lang/Object");
+                classRef(out, 3);
+                utf8(out, FORMULA);
+                classRef(out, 5);
+                utf8(out, "<init>");
+                utf8(out, "()V");
+                out.writeByte(12); // CONSTANT_NameAndType
+                out.writeShort(INIT_NAME);
+                out.writeShort(VOID_DESCRIPTOR);
+                out.writeByte(10); // CONSTANT_Methodref
+                out.writeShort(OBJECT_CLASS);
+                out.writeShort(9);
+                utf8(out, "evaluate");
+                utf8(out, "([I)I");
+                utf8(out, "Code");
+                for (int constant : intConstants.keySet()) {
+                    out.writeByte(3); // CONSTANT_Integer
+                    out.writeInt(constant);
+                }
+
+                out.writeShort(0x0011); // public final
+                out.writeShort(THIS_CLASS);
+                out.writeShort(OBJECT_CLASS);
+                out.writeShort(1);
+                out.writeShort(FORMULA_CLASS);
+                out.writeShort(0); // fields
+                out.writeShort(2); // methods
+
+                // public <init>() { super(); }
+                out.writeShort(0x0001);
+                out.writeShort(INIT_NAME);
+                out.writeShort(VOID_DESCRIPTOR);
+                out.writeShort(1); // method attributes
+                codeAttribute(out, 1, 1, new byte[] {0x2a, (byte) 0xb7, 0, OBJECT_INIT, (byte) 0xb1});
+
+                // public final int evaluate(int[] slots)
+                out.writeShort(0x0011);
+                out.writeShort(EVALUATE_NAME);
+                out.writeShort(EVALUATE_DESCRIPTOR);
+                out.writeShort(1); // method attributes
+                codeAttribute(out, maxStack, 2 + temporaries.size(), code.toByteArray());
+
+                out.writeShort(0); // class attributes
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void utf8(DataOutputStream out, String value) throws IOException {
+            out.writeByte(1); // CONSTANT_Utf8
+            out.writeUTF(value);
+        }
+
+        private static void classRef(DataOutputStream out, int nameIndex) throws IOException {
+            out.writeByte(7); // CONSTANT_Class
+            out.writeShort(nameIndex);
+        }
+
+        private static void codeAttribute(DataOutputStream out, int maxStack, int maxLocals, byte[] code)
+                throws IOException {
+            out.writeShort(CODE);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+
+    // Flat stack-machine form of an expression: an int[] instruction stream run by one
+    // switch loop over a preallocated operand stack, with no allocation per evaluation
+    public static final class StackProgram implements Formula {
+        public static final int PUSH_CONST = 0;
+        public static final int LOAD_SLOT = 1;
+        public static final int ADD = 2;
+        public static final int SUB = 3;
+        public static final int MUL = 4;
+        public static final int STORE_TEMP = 5; // copies the top of the stack, leaving it there
+        public static final int LOAD_TEMP = 6;
+
+        private final int[] code;
+        private final int maxStack;
+        private final int temporaries;
+        private final String[] variables;
+        // One scratch stack per thread, so the program is as thread-safe as any Formula;
+        // evaluate(slots, stack) skips the lookup when the caller owns a stack
+        private final ThreadLocal<int[]> stacks = ThreadLocal.withInitial(this::newStack);
+
+        private StackProgram(int[] code, int maxStack, int temporaries, String[] variables) {
+            this.code = code;
+            this.maxStack = maxStack;
+            this.temporaries = temporaries;
+            this.variables = variables;
+        }
+
+        public static StackProgram compile(Expression expression) {
+            Assembler assembler = new Assembler(expression);
+            assembler.emit(expression);
+            return new StackProgram(Arrays.copyOf(assembler.code, assembler.length), assembler.maxStack,
+                assembler.temporaries.size(), assembler.slots.keySet().toArray(new String[0]));
+        }
+
+        private static final class Assembler {
+            private final Map<String, Integer> slots = new LinkedHashMap<>();
+            private final Set<Expression> shared;
+            private final Map<Expression, Integer> temporaries = new IdentityHashMap<>();
+            private int[] code = new int[16];
+            private int length;
+            private int depth;
+            private int maxStack;
+
+            private Assembler(Expression expression) {
+                this.shared = ExpressionOptimizer.sharedSubexpressions(expression);
+            }
+
+            private void emit(Expression expression) {
+                Integer temporary = temporaries.get(expression);
+                if (temporary != null) {
+                    push(LOAD_TEMP, temporary);
+                } else if (expression instanceof NumberExpression number) {
+                    push(PUSH_CONST, number.number);
+                } else if (expression instanceof VariableExpression variable) {
+                    push(LOAD_SLOT, slots.computeIfAbsent(variable.variable, name -> slots.size()));
+                } else if (expression instanceof AddExpression add) {
+                    binary(ADD, add.left, add.right);
+                } else if (expression instanceof SubtractExpression subtract) {
+                    binary(SUB, subtract.left, subtract.right);
+                } else if (expression instanceof MultiplyExpression multiply) {
+                    binary(MUL, multiply.left, multiply.right);
+                } else {
+                    throw new IllegalArgumentException("Cannot compile " + expression.getClass().getSimpleName());
+                }
+                if (temporary == null && shared.contains(expression)) {
+                    temporaries.put(expression, temporaries.size());
+                    write(STORE_TEMP);
+                    write(temporaries.size() - 1);
+                }
+            }
+
+            private void push(int opcode, int operand) {
+                write(opcode);
+                write(operand);
+                maxStack = Math.max(maxStack, ++depth);
+            }
+
+            private void binary(int opcode, Expression left, Expression right) {
+                emit(left);
+                emit(right);
+                write(opcode);
+                depth--;
+            }
+
+            private void write(int value) {
+                if (length == code.length) {
+                    code = Arrays.copyOf(code, length * 2);
+                }
+                code[length++] = value;
+            }
+        }
+
+        // Operand stack followed by the temporaries
+        public int[] newStack() {
+            return new int[maxStack + temporaries];
+        }
+
+        @Override
+        public int evaluate(int[] slots) {
+            return evaluate(slots, stacks.get());
+        }
+
+        public int evaluate(int[] slots, int[] stack) {
+            int[] code = this.code;
+            int temps = maxStack;
+            int sp = 0;
+            int pc = 0;
+            while (pc < code.length) {
+                switch (code[pc++]) {
+                    case PUSH_CONST -> stack[sp++] = code[pc++];
+                    case LOAD_SLOT -> stack[sp++] = slots[code[pc++]];
+                    case STORE_TEMP -> stack[temps + code[pc++]] = stack[sp - 1];
+                    case LOAD_TEMP -> stack[sp++] = stack[temps + code[pc++]];
+                    case ADD -> {
+                        sp--;
+                        stack[sp - 1] += stack[sp];
+                    }
+                    case SUB -> {
+                        sp--;
+                        stack[sp - 1] -= stack[sp];
+                    }
+                    case MUL -> {
+                        sp--;
+                        stack[sp - 1] *= stack[sp];
+                    }
+                    default -> throw new IllegalStateException("Bad opcode at " + (pc - 1));
+                }
+            }
+            return stack[0];
+        }
+
+        public int slotOf(String variable) {
+            return Arrays.asList(variables).indexOf(variable);
+        }
+
+        public List<String> getVariables() {
+            return List.of(variables);
+        }
+
+        public int getCodeLength() {
+            return code.length;
+        }
+
+        public int getMaxStack() {
+            return maxStack;
+        }
+    }
+
+    // Evaluates one expression over many rows held column-wise. The optimized program is
+    // run once per chunk of rows rather than once per row: every stack entry is a whole
+    // chunk, and each ADD, SUB or MUL is a plain loop over int arrays that the JIT
+    // unrolls and vectorizes, so dispatch costs are paid once per CHUNK rows.
+    // Large batches can also be split across a ForkJoinPool, each task with its own buffers.
+    public static final class BatchEvaluator {
+        static final int CHUNK = 1024;
+        static final int PARALLEL_CHUNKS = 64; // rows per task: 64 chunks
+
+        private final StackProgram program;
+
+        public BatchEvaluator(Expression expression) {
+            this.program = StackProgram.compile(ExpressionOptimizer.optimize(expression));
+        }
+
+        // out[row] = expression with each variable read from columns.get(name)[row];
+        // variables without a column read as 0, like unset context variables
+        public static void evaluateBatch(Expression expression, Map<String, int[]> columns, int[] out) {
+            new BatchEvaluator(expression).evaluate(columns, out);
+        }
+
+        public void evaluate(Map<String, int[]> columns, int[] out) {
+            evaluateRange(bind(columns, out.length), 0, out.length, out, new Scratch(program));
+        }
+
+        public static void evaluateBatchParallel(Expression expression, Map<String, int[]> columns, int[] out) {
+            new BatchEvaluator(expression).evaluateParallel(columns, out);
+        }
+
+        public void evaluateParallel(Map<String, int[]> columns, int[] out) {
+            evaluateParallel(columns, out, ForkJoinPool.commonPool());
+        }
+
+        public void evaluateParallel(Map<String, int[]> columns, int[] out, ForkJoinPool pool) {
+            int[][] bound = bind(columns, out.length);
+            if (out.length <= CHUNK * PARALLEL_CHUNKS) {
+                evaluateRange(bound, 0, out.length, out, new Scratch(program));
+            } else {
+                pool.invoke(new RangeTask(bound, 0, out.length, out));
+            }
+        }
+
+        // Splits rows in halves on chunk boundaries; tasks write disjoint ranges of out.
+        // Serializable only because ForkJoinTask is; tasks never leave the pool.
+        private final class RangeTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[][] columns;
+            private final int from;
+            private final int to;
+            private final int[] out;
+
+            private RangeTask(int[][] columns, int from, int to, int[] out) {
+                this.columns = columns;
+                this.from = from;
+                this.to = to;
+                this.out = out;
+            }
+
+            @Override
+            protected void compute() {
+                int chunks = (to - from + CHUNK - 1) / CHUNK;
+                if (chunks <= PARALLEL_CHUNKS) {
+                    evaluateRange(columns, from, to, out, new Scratch(program));
+                    return;
+                }
+                int middle = from + chunks / 2 * CHUNK;
+                invokeAll(new RangeTask(columns, from, middle, out), new RangeTask(columns, middle, to, out));
+            }
+        }
+
+        // Columns in slot order; null for variables without one
+        private int[][] bind(Map<String, int[]> columns, int rows) {
+            int[][] bound = new int[program.variables.length][];
+            for (int slot = 0; slot < bound.length; slot++) {
+                int[] column = columns.get(program.variables[slot]);
+                if (column != null && column.length < rows) {
+                    throw new IllegalArgumentException("Column " + program.variables[slot] + " has "
+                        + column.length + " rows, expected " + rows);
+                }
+                bound[slot] = column;
+            }
+            return bound;
+        }
+
+        // Per-thread chunk buffers: the operand stack, then the temporaries
+        private static final class Scratch {
+            private final int[][] buffers;
+            private final int[][] views;   // what each stack entry reads: a buffer or a column
+            private final int[] offsets;   // where in the view the chunk starts
+            private final int[] zeros = new int[CHUNK];
+
+            private Scratch(StackProgram program) {
+                buffers = new int[program.maxStack + program.temporaries][CHUNK];
+                views = new int[program.maxStack][];
+                offsets = new int[program.maxStack];
+            }
+        }
+
+        private void evaluateRange(int[][] columns, int from, int to, int[] out, Scratch scratch) {
+            for (int start = from; start < to; start += CHUNK) {
+                evaluateChunk(columns, start, Math.min(CHUNK, to - start), out, scratch);
+            }
+        }
+
+        private void evaluateChunk(int[][] columns, int start, int n, int[] out, Scratch scratch) {
+            int[] code = program.code;
+            int temps = program.maxStack;
+            int[][] buffers = scratch.buffers;
+            int[][] views = scratch.views;
+            int[] offsets = scratch.offsets;
+            int sp = 0;
+            int pc = 0;
+            while (pc < code.length) {
+                switch (code[pc++]) {
+                    case StackProgram.PUSH_CONST -> {
+                        Arrays.fill(buffers[sp], 0, n, code[pc++]);
+                        views[sp] = buffers[sp];
+                        offsets[sp++] = 0;
+                    }
+                    case StackProgram.LOAD_SLOT -> {
+                        int[] column = columns[code[pc++]];
+                        views[sp] = column != null ? column : scratch.zeros;
+                        offsets[sp++] = column != null ? start : 0;
+                    }
+                    case StackProgram.STORE_TEMP ->
+                        System.arraycopy(views[sp - 1], offsets[sp - 1], buffers[temps + code[pc++]], 0, n);
+                    case StackProgram.LOAD_TEMP -> {
+                        views[sp] = buffers[temps + code[pc++]];
+                        offsets[sp++] = 0;
+                    }
+                    case StackProgram.ADD -> {
+                        sp--;
+                        add(views[sp - 1], offsets[sp - 1], views[sp], offsets[sp], buffers[sp - 1], n);
+                        views[sp - 1] = buffers[sp - 1];
+                        offsets[sp - 1] = 0;
+                    }
+                    case StackProgram.SUB -> {
+                        sp--;
+                        subtract(views[sp - 1], offsets[sp - 1], views[sp], offsets[sp], buffers[sp - 1], n);
+                        views[sp - 1] = buffers[sp - 1];
+                        offsets[sp - 1] = 0;
+                    }
+                    case StackProgram.MUL -> {
+                        sp--;
+                        multiply(views[sp - 1], offsets[sp - 1], views[sp], offsets[sp], buffers[sp - 1], n);
+                        views[sp - 1] = buffers[sp - 1];
+                        offsets[sp - 1] = 0;
+                    }
+                    default -> throw new IllegalStateException("Bad opcode at " + (pc - 1));
+                }
+            }
+            System.arraycopy(views[0], offsets[0], out, start, n);
+        }
+
+        // Simple counted loops over arrays so the JIT can vectorize them
+        private static void add(int[] a, int aOffset, int[] b, int bOffset, int[] dest, int n) {
+            for (int i = 0; i < n; i++) {
+                dest[i] = a[aOffset + i] + b[bOffset + i];
+            }
+        }
+
+        private static void subtract(int[] a, int aOffset, int[] b, int bOffset, int[] dest, int n) {
+            for (int i = 0; i < n; i++) {
+                dest[i] = a[aOffset + i] - b[bOffset + i];
+            }
+        }
+
+        private static void multiply(int[] a, int aOffset, int[] b, int bOffset, int[] dest, int n) {
+            for (int i = 0; i < n; i++) {
+                dest[i] = a[aOffset + i] * b[bOffset + i];
+            }
+        }
+    }
+
+    // Named formulas over a context, kept up to date like spreadsheet cells. Each result is
+    // published back into the context under the formula's name, so formulas can build
+    // on each other. When a variable changes, only the formulas downstream of it are
+    // re-evaluated, in dependency order, and propagation stops wherever a result comes
+    // out unchanged.
+    public static class FormulaModel implements ContextListener {
+        private final Context context;
+        private final Map<String, Cell> cells = new HashMap<>();
+        private final Map<Integer, List<Cell>> dependents = new HashMap<>();
+        private final Map<Integer, Cell> cellsBySlot = new HashMap<>();
+        // Lowest level first, so every cell runs after the changed cells it reads
+        private final PriorityQueue<Cell> pending = new PriorityQueue<>((a, b) -> Integer.compare(a.level, b.level));
+        private boolean updating;
+        private long evaluations;
+
+        private static final class Cell {
+            private final String name;
+            private final int slot;
+            private Expression expression;
+            private int[] inputs = new int[0]; // slots read by the expression
+            private int level;                 // 1 + the highest level among input cells
+            private boolean queued;
+
+            private Cell(String name, int slot) {
+                this.name = name;
+                this.slot = slot;
+            }
+        }
+
+        public FormulaModel(Context context) {
+            this.context = context;
+            context.addListener(this);
+        }
+
+        // Adds or replaces a formula and returns its value
+        public int define(String name, String formula) {
+            Expression expression = ExpressionOptimizer.optimize(
+                ExpressionParser.parse(formula, context.getSymbols()));
+            int[] inputs = inputSlots(expression);
+            int slot = context.getSymbols().resolve(name);
+            if (reads(inputs, slot)) {
+                throw new IllegalArgumentException("Formula " + name + " would depend on itself: " + formula);
+            }
+            Cell cell = cells.computeIfAbsent(name, key -> new Cell(key, slot));
+            cellsBySlot.put(slot, cell);
+            for (int input : cell.inputs) {
+                dependents.get(input).remove(cell);
+            }
+            cell.expression = expression;
+            cell.inputs = inputs;
+            for (int input : inputs) {
+                dependents.computeIfAbsent(input, key -> new ArrayList<>()).add(cell);
+            }
+            relevel(cell);
+            schedule(cell);
+            propagate();
+            return getValue(name);
+        }
+
+        // Whether inputs include slot, directly or through the formulas behind them
+        private boolean reads(int[] inputs, int slot) {
+            BitSet visited = new BitSet();
+            Deque<Integer> pending = new ArrayDeque<>();
+            for (int input : inputs) {
+                pending.push(input);
+            }
+            while (!pending.isEmpty()) {
+                int input = pending.pop();
+                if (input == slot) {
+                    return true;
+                }
+                Cell source = cellsBySlot.get(input);
+                if (source != null && !visited.get(input)) {
+                    visited.set(input);
+                    for (int next : source.inputs) {
+                        pending.push(next);
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Recomputes levels downstream of a (re)defined cell
+        private void relevel(Cell defined) {
+            Deque<Cell> pending = new ArrayDeque<>();
+            pending.push(defined);
+            while (!pending.isEmpty()) {
+                Cell cell = pending.pop();
+                int level = 0;
+                for (int input : cell.inputs) {
+                    Cell source = cellsBySlot.get(input);
+                    if (source != null) {
+                        level = Math.max(level, source.level + 1);
+                    }
+                }
+                if (cell == defined || level != cell.level) {
+                    cell.level = level;
+                    pending.addAll(dependents.getOrDefault(cell.slot, List.of()));
+                }
+            }
+        }
+
+        private static int[] inputSlots(Expression expression) {
+            BitSet slots = new BitSet();
+            Deque<Expression> pending = new ArrayDeque<>();
+            pending.push(expression);
+            while (!pending.isEmpty()) {
+                Expression node = pending.pop();
+                if (node instanceof VariableExpression variable) {
+                    slots.set(variable.slot);
+                } else if (node instanceof AddExpression add) {
+                    pending.push(add.left);
+                    pending.push(add.right);
+                } else if (node instanceof SubtractExpression subtract) {
+                    pending.push(subtract.left);
+                    pending.push(subtract.right);
+                } else if (node instanceof MultiplyExpression multiply) {
+                    pending.push(multiply.left);
+                    pending.push(multiply.right);
+                }
+            }
+            return slots.stream().toArray();
+        }
+
+        @Override
+        public void variableChanged(int slot) {
+            for (Cell dependent : dependents.getOrDefault(slot, List.of())) {
+                schedule(dependent);
+            }
+            propagate();
+        }
+
+        private void schedule(Cell cell) {
+            if (!cell.queued) {
+                cell.queued = true;
+                pending.add(cell);
+            }
+        }
+
+        // Publishing a result calls back into variableChanged, which only queues more cells
+        private void propagate() {
+            if (updating) {
+                return;
+            }
+            updating = true;
+            try {
+                while (!pending.isEmpty()) {
+                    Cell cell = pending.poll();
+                    cell.queued = false;
+                    evaluations++;
+                    context.setSlot(cell.slot, cell.expression.interpret(context));
+                }
+            } finally {
+                updating = false;
+            }
+        }
+
+        public int getValue(String name) {
+            Cell cell = cells.get(name);
+            if (cell == null) {
+                throw new IllegalArgumentException("No formula named " + name);
+            }
+            return context.getSlot(cell.slot);
+        }
+
+        public long getEvaluationCount() {
+            return evaluations;
+        }
+
+        public int size() {
+            return cells.size();
+        }
+    }
+
+    // Bounded LRU cache of parsed expressions keyed by their text. The entries are split
+    // across independently locked access-ordered segments, so threads hitting different
+    // formulas rarely contend; parsing on a miss happens outside any lock.
+    public static class ParseCache {
+        private static final int MAX_SEGMENTS = 16;
+
+        private final Segment[] segments;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        // Never serialized: the segments only live inside the cache
+        private final class Segment extends LinkedHashMap<String, Expression> {
+            private static final long serialVersionUID = 1L;
+
+            private final int capacity;
+
+            private Segment(int capacity) {
+                super(16, 0.75f, true);
+                this.capacity = capacity;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+                if (size() > capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        public ParseCache(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+            }
+            int count = Math.min(MAX_SEGMENTS, Integer.highestOneBit(capacity));
+            segments = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                // Spread the remainder so the segment capacities add up to capacity
+                segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+            }
+        }
+
+        // The result of one lookup; hit is false whenever this call had to parse
+        public record Lookup(Expression expression, boolean hit) {
+        }
+
+        public Expression get(String text, Function<String, Expression> parser) {
+            return lookup(text, parser).expression();
+        }
+
+        // Reports the outcome of this lookup itself; comparing the shared counters before
+        // and after would count other threads' misses too
+        public Lookup lookup(String text, Function<String, Expression> parser) {
+            Segment segment = segmentFor(text);
+            Expression expression;
+            synchronized (segment) {
+                expression = segment.get(text);
+            }
+            if (expression != null) {
+                hits.increment();
+                return new Lookup(expression, true);
+            }
+            misses.increment();
+            Expression parsed = parser.apply(text);
+            synchronized (segment) {
+                // Another thread may have parsed the same text meanwhile; keep the first
+                expression = segment.putIfAbsent(text, parsed);
+            }
+            return new Lookup(expression != null ? expression : parsed, false);
+        }
+
+        private Segment segmentFor(String text) {
+            int hash = text.hashCode();
+            return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        public double getHitRate() {
+            long hits = getHits();
+            long total = hits + getMisses();
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        public int size() {
+            int size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return size;
         }
     }
 
     // Calculator using interpreter
+    // Parsed and optimized expressions are cached by text, so repeated formulas skip parsing
     public static class Calculator {
-        private final Context context = new Context();
+        private static final int DEFAULT_CACHE_CAPACITY = 4096;
+
+        private final Context context;
+        private final ParseCache cache;
+
+        public Calculator() {
+            this(DEFAULT_CACHE_CAPACITY);
+        }
+
+        public Calculator(int cacheCapacity) {
+            this(new Context(), cacheCapacity);
+        }
+
+        // With a VersionedContext the calculator can be shared by request threads
+        public Calculator(Context context, int cacheCapacity) {
+            this.context = context;
+            this.cache = new ParseCache(cacheCapacity);
+        }
 
         public void setVariable(String name, int value) {
             context.setVariable(name, value);
@@ -179,13 +1535,30 @@ public class InterpreterPattern {
 
         public int evaluate(String expression) {
             System.out.println("Evaluating: " + expression);
-            Expression expr = ExpressionParser.parse(expression);
-            System.out.println("Parsed as: " + expr);
-            int result = expr.interpret(context);
+            ParseCache.Lookup lookup = cache.lookup(expression, this::parse);
+            Expression expr = lookup.expression();
+            if (lookup.hit()) {
+                System.out.println("Cached: " + expr);
+            }
+            int result = expr.interpret(context.readView());
             System.out.println("Result: " + result);
             return result;
         }
 
+        private Expression parse(String expression) {
+            Expression parsed = ExpressionParser.parse(expression, context.getSymbols());
+            System.out.println("Parsed as: " + parsed);
+            Expression optimized = ExpressionOptimizer.optimize(parsed);
+            if (!optimized.toString().equals(parsed.toString())) {
+                System.out.println("Optimized to: " + optimized);
+            }
+            return optimized;
+        }
+
+        public ParseCache getCache() {
+            return cache;
+        }
+
         public void showVariables() {
             context.showVariables();
         }
@@ -223,5 +1596,97 @@ public class InterpreterPattern {
         System.out.println("\n--- Mixed Expressions ---");
         calculator.evaluate("x 5 + y *");       // (x + 5) * y = (10 + 5) * 5 = 75
         calculator.evaluate("100 x y + -");     // 100 - (x + y) = 100 - (10 + 5) = 85
+
+        // Repeated formulas come straight from the parse cache
+        System.out.println("\n--- Parse Cache ---");
+        calculator.evaluate("x y + z *");
+        calculator.setVariable("z", 3);
+        calculator.evaluate("x y + z *");       // (10 + 5) * 3 = 45
+        ParseCache cache = calculator.getCache();
+        System.out.printf("Cache: %d entries, %d hits, %d misses (%.0f%% hit rate)%n",
+            cache.size(), cache.getHits(), cache.getMisses(), cache.getHitRate() * 100);
+        calculator.setVariable("z", 2);
+
+        // Compile once, then evaluate with variables passed by slot
+        System.out.println("\n--- Compiled Expressions ---");
+        CompiledExpression compiled = ExpressionCompiler.compile(ExpressionParser.parse("x 1000 + y * z -"));
+        int[] slots = new int[compiled.getVariables().size()];
+        slots[compiled.slotOf("x")] = 10;
+        slots[compiled.slotOf("y")] = 5;
+        slots[compiled.slotOf("z")] = 2;
+        System.out.println("Slots " + compiled.getVariables() + " -> " + compiled.evaluate(slots)); // 5048
+        long sum = 0;
+        for (int i = 0; i < 1_000_000; i++) {
+            slots[0] = i;
+            sum += compiled.evaluate(slots);
+        }
+        System.out.println("Sum over 1,000,000 evaluations: " + sum);
+
+        // The same formula as a flat instruction stream
+        System.out.println("\n--- Stack-Machine Programs ---");
+        StackProgram program = StackProgram.compile(ExpressionParser.parse("x 1000 + y * z -"));
+        System.out.println(program.getCodeLength() + " ints of code, operand stack of " + program.getMaxStack());
+        slots[0] = 10;
+        System.out.println("Slots " + program.getVariables() + " -> " + program.evaluate(slots)); // 5048
+
+        // One formula over a million rows, a chunk of rows at a time
+        System.out.println("\n--- Batch Evaluation ---");
+        int rows = 1_000_000;
+        int[] xs = new int[rows];
+        int[] ys = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            xs[i] = i;
+            ys[i] = i % 7;
+        }
+        int[] results = new int[rows];
+        BatchEvaluator.evaluateBatch(ExpressionParser.parse("x 1000 + y * z -"),
+            Map.of("x", xs, "y", ys, "z", new int[rows]), results);
+        System.out.println("Row 12: " + results[12]); // (12 + 1000) * 5 - 0 = 5060
+        BatchEvaluator.evaluateBatchParallel(ExpressionParser.parse("x y *"), Map.of("x", xs, "y", ys), results);
+        System.out.println("Row 999998 on " + ForkJoinPool.commonPool().getParallelism()
+            + " workers: " + results[rows - 2]); // 999998 * 6 = 5999988
+
+        // Changing one input re-evaluates only the formulas that depend on it
+        System.out.println("\n--- Incremental Formulas ---");
+        Context sheet = new Context();
+        FormulaModel model = new FormulaModel(sheet);
+        sheet.setVariable("price", 20);
+        sheet.setVariable("qty", 3);
+        sheet.setVariable("shipping", 7);
+        model.define("subtotal", "price qty *");
+        model.define("tax", "subtotal 8 *");
+        model.define("total", "subtotal tax + shipping +");
+        model.define("insurance", "shipping 2 *");
+        long before = model.getEvaluationCount();
+        sheet.setVariable("qty", 4);
+        System.out.println("total = " + model.getValue("total") + " after "
+            + (model.getEvaluationCount() - before) + " of " + model.size() + " formulas re-evaluated"); // 727, 3 of 4
+
+        // Readers evaluate against pinned snapshots while a writer keeps x + y = 100
+        System.out.println("\n--- Snapshot-Isolated Context ---");
+        VersionedContext shared = new VersionedContext();
+        shared.setVariables(Map.of("x", 100, "y", 0));
+        Expression balance = ExpressionParser.parse("x y +", shared.getSymbols());
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 100_000; i++) {
+                shared.setVariables(Map.of("x", 100 - i % 100, "y", i % 100));
+            }
+        });
+        writer.start();
+        int torn = 0;
+        while (writer.isAlive()) {
+            if (balance.interpret(shared.snapshot()) != 100) {
+                torn++;
+            }
+        }
+        System.out.println("Torn reads: " + torn + " after " + shared.getVersion() + " versions");
+
+        // Identities vanish and the repeated (x + y) is computed once into a temporary
+        System.out.println("\n--- Optimized Expressions ---");
+        calculator.evaluate("x 1 * y 0 + + x y + * 2 3 * -"); // (x + y) * (x + y) - 6 = 219
+        StackProgram optimized = StackProgram.compile(ExpressionOptimizer.optimize(
+            ExpressionParser.parse("x y + x y + * 2 3 * -")));
+        System.out.println(optimized.getCodeLength() + " ints of code -> "
+            + optimized.evaluate(new int[] {10, 5})); // 219
     }
 }
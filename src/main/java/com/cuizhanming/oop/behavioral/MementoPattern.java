@@ -1,5 +1,41 @@
 package com.cuizhanming.oop.behavioral;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
 /**
  * Memento Pattern - Captures and restores object state
  * 备忘录模式 - 捕获和恢复对象状态
@@ -7,33 +43,717 @@ package com.cuizhanming.oop.behavioral;
 public class MementoPattern {
 
     // Memento class
+    // Holds the editor's immutable rope, so taking a snapshot is O(1) and it shares
+    // all unchanged structure with the live document
     public static class TextMemento {
-        private final String content;
+        private static final AtomicLong NEXT_ID = new AtomicLong();
+
+        private final Rope text;
         private final int cursorPosition;
         private final long timestamp;
+        private final long id;
+        // Edit window relative to the state with id baseId (-1 if unknown): everything
+        // outside the first unchangedPrefix and last unchangedSuffix chars may differ
+        private final long baseId;
+        private final int unchangedPrefix;
+        private final int unchangedSuffix;
 
         public TextMemento(String content, int cursorPosition) {
-            this.content = content;
+            this(Rope.of(content), cursorPosition, System.currentTimeMillis(), -1, 0, 0);
+        }
+
+        TextMemento(Rope text, int cursorPosition, long timestamp,
+                    long baseId, int unchangedPrefix, int unchangedSuffix) {
+            this.text = text;
+            this.cursorPosition = cursorPosition;
+            this.timestamp = timestamp;
+            this.id = NEXT_ID.incrementAndGet();
+            this.baseId = baseId;
+            this.unchangedPrefix = unchangedPrefix;
+            this.unchangedSuffix = unchangedSuffix;
+        }
+
+        // Materializes the text, O(n); the editor itself restores from the rope
+        public String getContent() { return text.toString(); }
+        public int getLength() { return text.length(); }
+        public int getCursorPosition() { return cursorPosition; }
+        public long getTimestamp() { return timestamp; }
+    }
+
+    // Delta memento: the older of two neighbouring states, stored as the edit that
+    // turns the newer state back into it
+    public static class TextDelta {
+        private final int position;
+        private final String removedText;  // present in the newer state
+        private final String insertedText; // present in the older state
+        private final int cursorPosition;
+        private final long timestamp;
+
+        private TextDelta(int position, String removedText, String insertedText,
+                          int cursorPosition, long timestamp) {
+            this.position = position;
+            this.removedText = removedText;
+            this.insertedText = insertedText;
             this.cursorPosition = cursorPosition;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
+        }
+
+        public static TextDelta between(TextMemento newer, TextMemento older) {
+            Rope newRope = newer.text;
+            Rope oldRope = older.text;
+            int prefix;
+            int suffix;
+            if (newer.baseId == older.id) {
+                prefix = newer.unchangedPrefix;
+                suffix = newer.unchangedSuffix;
+            } else if (newer.baseId >= 0 && newer.baseId == older.baseId) {
+                // Both derived from the same state (an edit made after an undo): they can
+                // only differ inside the union of their edit windows
+                prefix = Math.min(newer.unchangedPrefix, older.unchangedPrefix);
+                suffix = Math.min(Math.min(newer.unchangedSuffix, older.unchangedSuffix),
+                    Math.min(newRope.length(), oldRope.length()) - prefix);
+            } else if (newRope == oldRope) {
+                prefix = newRope.length();
+                suffix = 0;
+            } else {
+                String newText = newRope.toString();
+                String oldText = oldRope.toString();
+                // Unrelated snapshots: fall back to trimming the common prefix and suffix
+                int limit = Math.min(newText.length(), oldText.length());
+                prefix = 0;
+                while (prefix < limit && newText.charAt(prefix) == oldText.charAt(prefix)) {
+                    prefix++;
+                }
+                suffix = 0;
+                while (suffix < limit - prefix && newText.charAt(newText.length() - 1 - suffix)
+                        == oldText.charAt(oldText.length() - 1 - suffix)) {
+                    suffix++;
+                }
+            }
+            return new TextDelta(prefix,
+                newRope.substring(prefix, newRope.length() - suffix),
+                oldRope.substring(prefix, oldRope.length() - suffix),
+                older.getCursorPosition(), older.getTimestamp());
+        }
+
+        public TextMemento applyTo(TextMemento newer) {
+            Rope restored = newer.text
+                .delete(position, position + removedText.length())
+                .insert(position, insertedText);
+            int unchangedSuffix = newer.text.length() - position - removedText.length();
+            return new TextMemento(restored, cursorPosition, timestamp, newer.id, position, unchangedSuffix);
+        }
+
+        // The inverse of applyTo: rebuilds the newer state from the older one
+        Rope reapplyTo(Rope older) {
+            return older.delete(position, position + insertedText.length()).insert(position, removedText);
+        }
+
+        TextMemento reapplyTo(TextMemento older, int cursorPosition, long timestamp) {
+            int unchangedSuffix = older.text.length() - position - insertedText.length();
+            return new TextMemento(reapplyTo(older.text), cursorPosition, timestamp,
+                older.id, position, unchangedSuffix);
         }
 
-        public String getContent() { return content; }
+        public int getPosition() { return position; }
+        public String getRemovedText() { return removedText; }
+        public String getInsertedText() { return insertedText; }
         public int getCursorPosition() { return cursorPosition; }
         public long getTimestamp() { return timestamp; }
     }
 
+    // Balanced rope used as the editor's text storage
+    // Nodes are immutable; edits rebuild only the O(log n) path to the change
+    public static final class Rope {
+        private static final int LEAF_MAX = 1024;
+        public static final Rope EMPTY = new Rope("");
+
+        private final CharSequence text; // leaves only
+        private final Rope left;         // internal nodes only
+        private final Rope right;
+        private final int length;
+        private final int height;        // 0 for leaves
+        // Line index: newline count of this subtree, or -1 until first needed. Edits only
+        // create the nodes on one path, so the index is maintained incrementally; mapped
+        // leaves are counted lazily so opening a file doesn't scan it.
+        private int newlines;
+
+        private Rope(CharSequence text) {
+            this.text = text;
+            this.left = null;
+            this.right = null;
+            this.length = text.length();
+            this.height = 0;
+            this.newlines = text instanceof String ? countNewlines(text, 0, length) : -1;
+        }
+
+        private Rope(Rope left, Rope right) {
+            this.text = null;
+            this.left = left;
+            this.right = right;
+            this.length = left.length + right.length;
+            this.height = Math.max(left.height, right.height) + 1;
+            this.newlines = left.newlines >= 0 && right.newlines >= 0 ? left.newlines + right.newlines : -1;
+        }
+
+        private static int countNewlines(CharSequence text, int from, int to) {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (text.charAt(i) == '\n') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int newlines() {
+            int count = newlines;
+            if (count < 0) {
+                count = isLeaf() ? countNewlines(text, 0, length) : left.newlines() + right.newlines();
+                newlines = count; // racy but idempotent
+            }
+            return count;
+        }
+
+        public int lineCount() {
+            return newlines() + 1;
+        }
+
+        // Zero-based line containing the char at offset, O(log n)
+        public int lineOf(int offset) {
+            Objects.checkIndex(offset, length + 1);
+            Rope node = this;
+            int line = 0;
+            while (!node.isLeaf()) {
+                if (offset <= node.left.length) {
+                    node = node.left;
+                } else {
+                    line += node.left.newlines();
+                    offset -= node.left.length;
+                    node = node.right;
+                }
+            }
+            return line + countNewlines(node.text, 0, offset);
+        }
+
+        // Offset of the first char of a zero-based line, O(log n)
+        public int lineStart(int line) {
+            Objects.checkIndex(line, lineCount());
+            if (line == 0) {
+                return 0;
+            }
+            Rope node = this;
+            int base = 0;
+            int remaining = line; // the line starts just after the remaining-th newline
+            while (!node.isLeaf()) {
+                int leftNewlines = node.left.newlines();
+                if (remaining <= leftNewlines) {
+                    node = node.left;
+                } else {
+                    remaining -= leftNewlines;
+                    base += node.left.length;
+                    node = node.right;
+                }
+            }
+            for (int i = 0; i < node.length; i++) {
+                if (node.text.charAt(i) == '\n' && --remaining == 0) {
+                    return base + i + 1;
+                }
+            }
+            throw new IllegalStateException("Line index out of sync");
+        }
+
+        // Boyer-Moore-Horspool search; chars are read through a cursor that caches the
+        // current leaf, so each probe is O(1) amortized instead of a root-to-leaf walk
+        public int indexOf(CharSequence pattern, int fromIndex) {
+            int m = pattern.length();
+            int start = Math.max(0, fromIndex);
+            if (m == 0) {
+                return Math.min(start, length);
+            }
+            if (length - start < m) {
+                return -1;
+            }
+            // Shift table over the low byte of each char; collisions keep the smaller,
+            // still safe, shift
+            int[] shift = new int[256];
+            Arrays.fill(shift, m);
+            for (int i = 0; i < m - 1; i++) {
+                shift[pattern.charAt(i) & 0xFF] = m - 1 - i;
+            }
+            LeafCursor cursor = new LeafCursor(this);
+            char last = pattern.charAt(m - 1);
+            for (int position = start; position <= length - m; ) {
+                char c = cursor.charAt(position + m - 1);
+                if (c == last) {
+                    int i = m - 2;
+                    while (i >= 0 && cursor.charAt(position + i) == pattern.charAt(i)) {
+                        i--;
+                    }
+                    if (i < 0) {
+                        return position;
+                    }
+                }
+                position += shift[c & 0xFF];
+            }
+            return -1;
+        }
+
+        private static final class LeafCursor {
+            private final Rope root;
+            private CharSequence leaf = "";
+            private int leafStart;
+            private int leafEnd;
+
+            private LeafCursor(Rope root) {
+                this.root = root;
+            }
+
+            private char charAt(int index) {
+                if (index < leafStart || index >= leafEnd) {
+                    Rope node = root;
+                    int base = 0;
+                    while (!node.isLeaf()) {
+                        if (index - base < node.left.length) {
+                            node = node.left;
+                        } else {
+                            base += node.left.length;
+                            node = node.right;
+                        }
+                    }
+                    leaf = node.text;
+                    leafStart = base;
+                    leafEnd = base + node.length;
+                }
+                return leaf.charAt(index - leafStart);
+            }
+        }
+
+        public static Rope of(CharSequence text) {
+            if (text.length() == 0) {
+                return EMPTY;
+            }
+            return build(text.toString(), 0, text.length());
+        }
+
+        // Balanced tree over existing leaf texts, e.g. views of a mapped file
+        static Rope ofLeaves(CharSequence[] leaves) {
+            return leaves.length == 0 ? EMPTY : balance(leaves, 0, leaves.length);
+        }
+
+        private static Rope balance(CharSequence[] leaves, int from, int to) {
+            if (to - from == 1) {
+                return new Rope(leaves[from]);
+            }
+            int middle = (from + to) >>> 1;
+            return new Rope(balance(leaves, from, middle), balance(leaves, middle, to));
+        }
+
+        // Splits into LEAF_MAX-sized chunks and halves them, giving a perfectly balanced tree
+        private static Rope build(String text, int from, int to) {
+            if (to - from <= LEAF_MAX) {
+                return new Rope(text.substring(from, to));
+            }
+            int chunks = (to - from + LEAF_MAX - 1) / LEAF_MAX;
+            int middle = from + (chunks / 2) * LEAF_MAX;
+            return new Rope(build(text, from, middle), build(text, middle, to));
+        }
+
+        private boolean isLeaf() {
+            return text != null;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt(int index) {
+            Objects.checkIndex(index, length);
+            Rope node = this;
+            while (!node.isLeaf()) {
+                if (index < node.left.length) {
+                    node = node.left;
+                } else {
+                    index -= node.left.length;
+                    node = node.right;
+                }
+            }
+            return node.text.charAt(index);
+        }
+
+        public Rope insert(int index, CharSequence inserted) {
+            Objects.checkIndex(index, length + 1);
+            return concat(concat(prefix(index), of(inserted)), suffix(index));
+        }
+
+        public Rope delete(int from, int to) {
+            Objects.checkFromToIndex(from, to, length);
+            return concat(prefix(from), suffix(to));
+        }
+
+        public String substring(int from, int to) {
+            Objects.checkFromToIndex(from, to, length);
+            StringBuilder builder = new StringBuilder(to - from);
+            appendTo(builder, from, to);
+            return builder.toString();
+        }
+
+        private void appendTo(StringBuilder builder, int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            if (isLeaf()) {
+                builder.append(text, from, to);
+                return;
+            }
+            int split = left.length;
+            if (from < split) {
+                left.appendTo(builder, from, Math.min(to, split));
+            }
+            if (to > split) {
+                right.appendTo(builder, Math.max(from, split) - split, to - split);
+            }
+        }
+
+        // First count characters
+        private Rope prefix(int count) {
+            if (count <= 0) {
+                return EMPTY;
+            }
+            if (count >= length) {
+                return this;
+            }
+            if (isLeaf()) {
+                return new Rope(text.subSequence(0, count));
+            }
+            if (count <= left.length) {
+                return left.prefix(count);
+            }
+            return concat(left, right.prefix(count - left.length));
+        }
+
+        // Everything from index onwards
+        private Rope suffix(int index) {
+            if (index <= 0) {
+                return this;
+            }
+            if (index >= length) {
+                return EMPTY;
+            }
+            if (isLeaf()) {
+                return new Rope(text.subSequence(index, length));
+            }
+            if (index >= left.length) {
+                return right.suffix(index - left.length);
+            }
+            return concat(left.suffix(index), right);
+        }
+
+        // AVL-style join: descend the taller side, then rotate back into balance
+        static Rope concat(Rope a, Rope b) {
+            if (a.length == 0) {
+                return b;
+            }
+            if (b.length == 0) {
+                return a;
+            }
+            if (a.height > b.height + 1) {
+                return joinRight(a, b);
+            }
+            if (b.height > a.height + 1) {
+                return joinLeft(a, b);
+            }
+            return pair(a, b);
+        }
+
+        private static Rope joinRight(Rope a, Rope b) {
+            Rope inner = a.right.height <= b.height + 1 ? pair(a.right, b) : joinRight(a.right, b);
+            Rope joined = new Rope(a.left, inner);
+            if (inner.height <= a.left.height + 1) {
+                return joined;
+            }
+            if (inner.left.height > inner.right.height) {
+                joined = new Rope(a.left, rotateRight(inner));
+            }
+            return rotateLeft(joined);
+        }
+
+        private static Rope joinLeft(Rope a, Rope b) {
+            Rope inner = b.left.height <= a.height + 1 ? pair(a, b.left) : joinLeft(a, b.left);
+            Rope joined = new Rope(inner, b.right);
+            if (inner.height <= b.right.height + 1) {
+                return joined;
+            }
+            if (inner.right.height > inner.left.height) {
+                joined = new Rope(rotateLeft(inner), b.right);
+            }
+            return rotateRight(joined);
+        }
+
+        // Small neighbouring leaves are merged so single keystrokes don't fragment the tree
+        private static Rope pair(Rope a, Rope b) {
+            if (a.isLeaf() && b.isLeaf() && a.length + b.length <= LEAF_MAX) {
+                return new Rope(a.text.toString() + b.text);
+            }
+            return new Rope(a, b);
+        }
+
+        private static Rope rotateLeft(Rope node) {
+            return new Rope(new Rope(node.left, node.right.left), node.right.right);
+        }
+
+        private static Rope rotateRight(Rope node) {
+            return new Rope(node.left.left, new Rope(node.left.right, node.right));
+        }
+
+        interface LeafVisitor {
+            void visit(CharSequence leaf) throws IOException;
+        }
+
+        void forEachLeaf(LeafVisitor visitor) throws IOException {
+            if (isLeaf()) {
+                if (length > 0) {
+                    visitor.visit(text);
+                }
+                return;
+            }
+            left.forEachLeaf(visitor);
+            right.forEachLeaf(visitor);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(length);
+            appendTo(builder, 0, length);
+            return builder.toString();
+        }
+    }
+
+    // A rope leaf backed by a memory-mapped file, which a save can copy byte for byte
+    interface MappedLeaf extends CharSequence {
+        boolean canCopyAs(Charset charset);
+
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    // Read-only view of a region of a memory-mapped file, one byte per char (ISO-8859-1)
+    // Nothing is copied onto the heap; the OS pages bytes in when they are first read
+    static final class MappedText implements MappedLeaf {
+        private final ByteBuffer bytes;
+        private final int offset;
+        private final int length;
+
+        MappedText(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            Objects.checkIndex(index, length);
+            return (char) (bytes.get(offset + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            Objects.checkFromToIndex(start, end, length);
+            return new MappedText(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public boolean canCopyAs(Charset charset) {
+            return charset.equals(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer region = bytes.slice(offset, length);
+            while (region.hasRemaining()) {
+                channel.write(region);
+            }
+        }
+
+        @Override
+        public String toString() {
+            byte[] copy = new byte[length];
+            bytes.get(offset, copy);
+            return new String(copy, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // Read-only view of part of a memory-mapped chunk in a multi-byte charset. The chunk
+    // starts and ends on character boundaries, is decoded on first read and only kept
+    // softly, so untouched parts of the file stay on disk and the GC can drop decoded
+    // chunks again under memory pressure.
+    static final class DecodedText implements MappedLeaf {
+        private final DecodedChunk chunk;
+        private final int start;
+        private final int length;
+
+        DecodedText(DecodedChunk chunk, int start, int length) {
+            this.chunk = chunk;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            Objects.checkIndex(index, length);
+            return chunk.text().charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            Objects.checkFromToIndex(start, end, length);
+            return new DecodedText(chunk, this.start + start, end - start);
+        }
+
+        // Only a whole chunk has known byte bounds
+        @Override
+        public boolean canCopyAs(Charset charset) {
+            return start == 0 && length == chunk.length && charset.equals(chunk.charset);
+        }
+
+        @Override
+        public void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer region = chunk.bytes.slice(chunk.offset, chunk.byteLength);
+            while (region.hasRemaining()) {
+                channel.write(region);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return chunk.text().substring(start, start + length);
+        }
+    }
+
+    static final class DecodedChunk {
+        private final ByteBuffer bytes;
+        private final int offset;
+        private final int byteLength;
+        private final int length; // in chars, counted when the file was opened
+        private final Charset charset;
+        private SoftReference<String> decoded; // racy, but decoding twice is harmless
+
+        DecodedChunk(ByteBuffer bytes, int offset, int byteLength, int length, Charset charset) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.byteLength = byteLength;
+            this.length = length;
+            this.charset = charset;
+        }
+
+        String text() {
+            SoftReference<String> cached = decoded;
+            String text = cached == null ? null : cached.get();
+            if (text == null) {
+                text = charset.decode(bytes.slice(offset, byteLength)).toString();
+                decoded = new SoftReference<>(text);
+            }
+            return text;
+        }
+    }
+
+    // Encodes rope leaves into a channel as one stream, so a surrogate pair split across
+    // two leaves is still one character. Unmappable or malformed text throws a
+    // CharacterCodingException instead of being replaced with '?'.
+    static final class LeafEncoder {
+        private final CharsetEncoder encoder;
+        private final FileChannel out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private String pending; // a high surrogate still waiting for its pair
+
+        LeafEncoder(Charset charset, FileChannel out) {
+            this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+            this.out = out;
+        }
+
+        void write(CharSequence leaf) throws IOException {
+            CharBuffer in = CharBuffer.wrap(pending == null ? leaf : pending + leaf);
+            pending = null;
+            encode(in, false);
+            if (in.hasRemaining()) {
+                pending = in.toString();
+            }
+        }
+
+        // Copies bytes that are already in the target encoding
+        void writeRaw(MappedLeaf mapped) throws IOException {
+            if (pending != null) {
+                throw new MalformedInputException(pending.length());
+            }
+            drain();
+            mapped.writeTo(out);
+        }
+
+        void finish() throws IOException {
+            encode(CharBuffer.wrap(pending == null ? "" : pending), true);
+            pending = null;
+            CoderResult result;
+            while ((result = encoder.flush(buffer)).isOverflow()) {
+                drain();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            drain();
+        }
+
+        private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+            while (true) {
+                CoderResult result = encoder.encode(in, buffer, endOfInput);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (!result.isOverflow()) {
+                    return;
+                }
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
     // Originator class
     public static class TextEditor {
-        private String content = "";
+        private static final int PREVIEW_LENGTH = 80;
+        private static final int MAPPED_LEAF = 64 * 1024;
+        private static final int MAPPED_SEGMENT = 1 << 30; // a multiple of MAPPED_LEAF
+
+        private Rope content = Rope.EMPTY;
         private int cursorPosition = 0;
+        private Charset charset = StandardCharsets.ISO_8859_1; // of the file last opened
+        // Edit window since the last save/restore, used to build delta mementos
+        private long baseId = -1;
+        private int unchangedPrefix = Integer.MAX_VALUE;
+        private int unchangedSuffix = Integer.MAX_VALUE;
 
         public void write(String text) {
-            String before = content.substring(0, cursorPosition);
-            String after = content.substring(cursorPosition);
-            content = before + text + after;
+            touch(cursorPosition, cursorPosition);
+            content = content.insert(cursorPosition, text);
             cursorPosition += text.length();
-            System.out.println("Wrote: '" + text + "' | Content: '" + content + "'");
+            System.out.println("Wrote: '" + text + "' | Content: '" + preview() + "'");
         }
 
         public void setCursor(int position) {
@@ -41,64 +761,1490 @@ public class MementoPattern {
             System.out.println("Cursor moved to position: " + cursorPosition);
         }
 
+        // Zero-based line and column; the column is clamped to the line's length
+        public void setCursor(int line, int column) {
+            int target = Math.max(0, Math.min(line, content.lineCount() - 1));
+            int start = content.lineStart(target);
+            int end = target + 1 < content.lineCount() ? content.lineStart(target + 1) - 1 : content.length();
+            setCursor(start + Math.max(0, Math.min(column, end - start)));
+        }
+
+        public int getLineCount() {
+            return content.lineCount();
+        }
+
+        public int getCursorLine() {
+            return content.lineOf(cursorPosition);
+        }
+
+        public int getCursorColumn() {
+            return cursorPosition - content.lineStart(content.lineOf(cursorPosition));
+        }
+
+        public int indexOf(String pattern, int fromIndex) {
+            return content.indexOf(pattern, fromIndex);
+        }
+
+        // Moves the cursor to the next match at or after the cursor
+        public boolean find(String pattern) {
+            int index = content.indexOf(pattern, cursorPosition);
+            if (index < 0) {
+                System.out.println("'" + pattern + "' not found");
+                return false;
+            }
+            cursorPosition = index;
+            System.out.println("Found '" + pattern + "' at line " + getCursorLine()
+                + ", column " + getCursorColumn());
+            return true;
+        }
+
         public void delete(int count) {
             int start = Math.max(0, cursorPosition - count);
-            String before = content.substring(0, start);
-            String after = content.substring(cursorPosition);
-            content = before + after;
+            touch(start, cursorPosition);
+            content = content.delete(start, cursorPosition);
             cursorPosition = start;
-            System.out.println("Deleted " + count + " characters | Content: '" + content + "'");
+            System.out.println("Deleted " + count + " characters | Content: '" + preview() + "'");
+        }
+
+        // Records that [from, to) of the current content is about to be replaced
+        private void touch(int from, int to) {
+            unchangedPrefix = Math.min(unchangedPrefix, from);
+            unchangedSuffix = Math.min(unchangedSuffix, content.length() - to);
         }
 
         public TextMemento save() {
             System.out.println("Saving state...");
-            return new TextMemento(content, cursorPosition);
+            return capture();
+        }
+
+        private TextMemento capture() {
+            int prefix = Math.min(unchangedPrefix, content.length());
+            int suffix = Math.min(unchangedSuffix, content.length() - prefix);
+            TextMemento memento = new TextMemento(content, cursorPosition,
+                System.currentTimeMillis(), baseId, prefix, suffix);
+            resetEditWindow(memento);
+            return memento;
+        }
+
+        private void resetEditWindow(TextMemento base) {
+            baseId = base.id;
+            unchangedPrefix = Integer.MAX_VALUE;
+            unchangedSuffix = Integer.MAX_VALUE;
         }
 
         public void restore(TextMemento memento) {
-            this.content = memento.getContent();
+            this.content = memento.text;
+            this.cursorPosition = memento.getCursorPosition();
+            resetEditWindow(memento);
+            System.out.println("Restored to: '" + preview() + "' (cursor at " + cursorPosition + ")");
+        }
+
+        // Restores a state rebuilt from a delta but keeps its edit window, so the next
+        // delta against the state it was rebuilt from stays cheap
+        private void restoreDerived(TextMemento memento) {
+            this.content = memento.text;
             this.cursorPosition = memento.getCursorPosition();
-            System.out.println("Restored to: '" + content + "' (cursor at " + cursorPosition + ")");
+            baseId = memento.baseId;
+            unchangedPrefix = memento.unchangedPrefix;
+            unchangedSuffix = memento.unchangedSuffix;
+            System.out.println("Restored to: '" + preview() + "' (cursor at " + cursorPosition + ")");
         }
 
         public void showStatus() {
-            System.out.println("Content: '" + content + "' | Cursor: " + cursorPosition);
+            System.out.println("Content: '" + preview() + "' | Cursor: " + cursorPosition);
+        }
+
+        public int length() {
+            return content.length();
+        }
+
+        // Detects the charset: the one a byte-order mark names, else UTF-8 when the file
+        // is valid UTF-8, else ISO-8859-1, which accepts any bytes. Pass the charset
+        // explicitly when it is known.
+        public void open(Path file) throws IOException {
+            Charset detected;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer head = ByteBuffer.allocate(3);
+                channel.read(head, 0);
+                detected = byteOrderMark(head.flip());
+            }
+            if (detected != null) {
+                open(file, detected);
+                return;
+            }
+            try {
+                open(file, StandardCharsets.UTF_8);
+            } catch (MalformedInputException e) {
+                open(file, StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        private static Charset byteOrderMark(ByteBuffer head) {
+            int b0 = head.remaining() > 0 ? head.get(0) & 0xFF : -1;
+            int b1 = head.remaining() > 1 ? head.get(1) & 0xFF : -1;
+            int b2 = head.remaining() > 2 ? head.get(2) & 0xFF : -1;
+            if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+                return StandardCharsets.UTF_8;
+            }
+            if (b0 == 0xFE && b1 == 0xFF) {
+                return StandardCharsets.UTF_16BE;
+            }
+            if (b0 == 0xFF && b1 == 0xFE) {
+                return StandardCharsets.UTF_16LE;
+            }
+            return null;
+        }
+
+        // ISO-8859-1 files are mapped and used as the original text without reading them
+        // onto the heap: every byte is one char, so char offsets are byte offsets and any
+        // file round-trips unchanged. Charsets that decode piecewise (UTF-8, UTF-16BE/LE and
+        // single-byte ones) are mapped too, in chunks cut at character boundaries that are
+        // decoded when first read; opening only checks the bytes decode. Any other charset
+        // (e.g. stateful ones) is decoded onto the heap. Malformed input is rejected either
+        // way. Files are limited to Integer.MAX_VALUE bytes since positions are ints.
+        public void open(Path file, Charset charset) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("File too large to edit: " + size + " bytes");
+                }
+                if (charset.equals(StandardCharsets.ISO_8859_1)) {
+                    content = map(channel, size);
+                } else if (decodesPiecewise(charset)) {
+                    content = mapDecoded(channel, size, charset);
+                } else {
+                    content = decode(channel, size, charset);
+                }
+            }
+            this.charset = charset;
+            cursorPosition = 0;
+            baseId = -1;
+            unchangedPrefix = Integer.MAX_VALUE;
+            unchangedSuffix = Integer.MAX_VALUE;
+            System.out.println("Opened " + file.getFileName() + " (" + content.length() + " chars)");
+        }
+
+        private static Rope map(FileChannel channel, long size) throws IOException {
+            CharSequence[] leaves = new CharSequence[(int) ((size + MAPPED_LEAF - 1) / MAPPED_LEAF)];
+            int leaf = 0;
+            for (long segment = 0; segment < size; segment += MAPPED_SEGMENT) {
+                int segmentSize = (int) Math.min(MAPPED_SEGMENT, size - segment);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, segment, segmentSize);
+                for (int offset = 0; offset < segmentSize; offset += MAPPED_LEAF) {
+                    leaves[leaf++] = new MappedText(mapped, offset, Math.min(MAPPED_LEAF, segmentSize - offset));
+                }
+            }
+            return Rope.ofLeaves(leaves);
+        }
+
+        // Stateless charsets whose streams can be split at any character boundary
+        private static boolean decodesPiecewise(Charset charset) {
+            return charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.UTF_16BE)
+                || charset.equals(StandardCharsets.UTF_16LE)
+                || charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1;
+        }
+
+        private static CharsetDecoder strictDecoder(Charset charset) {
+            return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        }
+
+        // One streaming pass cuts leaves where the decoder stops short of a partial
+        // character and counts their chars; the decoded text itself is discarded. A
+        // segment starts where the previous one's last whole character ended.
+        private static Rope mapDecoded(FileChannel channel, long size, Charset charset) throws IOException {
+            CharsetDecoder decoder = strictDecoder(charset);
+            CharBuffer scratch = CharBuffer.allocate(MAPPED_LEAF); // these charsets never expand
+            List<CharSequence> leaves = new ArrayList<>();
+            long segment = 0;
+            while (segment < size) {
+                int segmentSize = (int) Math.min(MAPPED_SEGMENT, size - segment);
+                boolean lastSegment = segment + segmentSize == size;
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, segment, segmentSize);
+                int offset = 0;
+                while (offset < segmentSize) {
+                    ByteBuffer window = mapped.slice(offset, Math.min(MAPPED_LEAF, segmentSize - offset));
+                    boolean endOfInput = lastSegment && offset + window.limit() == segmentSize;
+                    scratch.clear();
+                    CoderResult result = decoder.decode(window, scratch, endOfInput);
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    if (window.position() == 0) {
+                        break; // a character straddles the end of the segment
+                    }
+                    DecodedChunk chunk = new DecodedChunk(mapped, offset, window.position(),
+                        scratch.position(), charset);
+                    leaves.add(new DecodedText(chunk, 0, chunk.length));
+                    offset += window.position();
+                }
+                segment += offset;
+            }
+            return Rope.ofLeaves(leaves.toArray(new CharSequence[0]));
+        }
+
+        // Decodes in one go, then cuts the result straight into rope-sized leaves
+        private static Rope decode(FileChannel channel, long size, Charset charset) throws IOException {
+            CharBuffer text = strictDecoder(charset).decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            int length = text.remaining();
+            CharSequence[] leaves = new CharSequence[(length + Rope.LEAF_MAX - 1) / Rope.LEAF_MAX];
+            for (int i = 0; i < leaves.length; i++) {
+                int from = i * Rope.LEAF_MAX;
+                leaves[i] = text.subSequence(from, Math.min(length, from + Rope.LEAF_MAX)).toString();
+            }
+            return Rope.ofLeaves(leaves);
+        }
+
+        // Saves in the charset of the file last opened (ISO-8859-1 by default)
+        public void saveTo(Path file) throws IOException {
+            saveTo(file, charset);
+        }
+
+        // Streams the pieces out: mapped pieces are copied straight from the mapping when
+        // saving in the charset they were mapped in, everything else is encoded. Text the charset cannot represent
+        // fails the save with a CharacterCodingException and leaves the file untouched.
+        // Writes a sibling temp file and moves it into place, so the file being saved over
+        // can still back this document while it is written.
+        public void saveTo(Path file, Charset charset) throws IOException {
+            Path target = file.toAbsolutePath();
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    LeafEncoder encoder = new LeafEncoder(charset, out);
+                    content.forEachLeaf(leaf -> {
+                        if (leaf instanceof MappedLeaf mapped && mapped.canCopyAs(charset)) {
+                            encoder.writeRaw(mapped);
+                        } else {
+                            encoder.write(leaf);
+                        }
+                    });
+                    encoder.finish();
+                    out.force(true);
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            System.out.println("Saved " + content.length() + " chars to " + file.getFileName());
+        }
+
+        public String getContent() {
+            return content.toString();
+        }
+
+        // Logging the whole document would make every keystroke O(n) again
+        private String preview() {
+            if (content.length() <= PREVIEW_LENGTH) {
+                return content.toString();
+            }
+            return content.substring(0, PREVIEW_LENGTH - 3) + "...";
+        }
+    }
+
+    // Document shared by many concurrently editing cursors, with no lock on the text.
+    // Revisions form a forward-linked chain; an edit commits by CAS-ing itself onto the
+    // tip's next link, after transforming its positions past every edit that beat it.
+    // Nothing links back, so revisions no cursor has synced to since are collectable;
+    // a cursor kept around unused pins the chain from its revision on until it is closed.
+    public static class SharedDocument {
+        private final AtomicReference<Revision> head;
+
+        public SharedDocument(String initialText) {
+            this.head = new AtomicReference<>(new Revision(0, Rope.of(initialText), null));
+        }
+
+        // Replace [position, position + deleteCount) with inserted text
+        private static final class Edit {
+            private final int position;
+            private final int deleteCount;
+            private final String inserted;
+
+            private Edit(int position, int deleteCount, String inserted) {
+                this.position = position;
+                this.deleteCount = deleteCount;
+                this.inserted = inserted;
+            }
+
+            private int end() {
+                return position + deleteCount;
+            }
+
+            private int delta() {
+                return inserted.length() - deleteCount;
+            }
+
+            // Where a range start ends up once `applied` has been made; text the applied
+            // edit inserted at or around it stays in front
+            private static int mapStart(int offset, Edit applied) {
+                if (offset < applied.position) {
+                    return offset;
+                }
+                if (offset >= applied.end()) {
+                    return offset + applied.delta();
+                }
+                return applied.position + applied.inserted.length();
+            }
+
+            private static int mapEnd(int offset, Edit applied) {
+                if (offset <= applied.position) {
+                    return offset;
+                }
+                if (offset >= applied.end()) {
+                    return offset + applied.delta();
+                }
+                return applied.position;
+            }
+
+            // Rebases this edit onto a document where `applied` has already happened
+            private Edit transform(Edit applied) {
+                int start = mapStart(position, applied);
+                int end = Math.max(start, mapEnd(end(), applied));
+                return new Edit(start, end - start, inserted);
+            }
+
+            private Rope applyTo(Rope text) {
+                return text.delete(position, end()).insert(position, inserted);
+            }
+        }
+
+        private static final class Revision {
+            private final long number;
+            private final Rope text;
+            private final Edit edit; // the edit that produced this revision
+            private final AtomicReference<Revision> next = new AtomicReference<>();
+
+            private Revision(long number, Rope text, Edit edit) {
+                this.number = number;
+                this.text = text;
+                this.edit = edit;
+            }
+        }
+
+        public Cursor newCursor(int position) {
+            Cursor cursor = new Cursor(this, latest());
+            cursor.moveTo(position);
+            return cursor;
+        }
+
+        // head may lag the real tip by a few revisions; the next links are authoritative
+        private Revision latest() {
+            Revision revision = head.get();
+            for (Revision next = revision.next.get(); next != null; next = revision.next.get()) {
+                revision = next;
+            }
+            return revision;
+        }
+
+        private void advanceHead(Revision committed) {
+            Revision current = head.get();
+            while (current.number < committed.number && !head.compareAndSet(current, committed)) {
+                current = head.get();
+            }
+        }
+
+        public long getRevision() {
+            return latest().number;
+        }
+
+        public String getText() {
+            return latest().text.toString();
+        }
+
+        // O(1): the memento shares the revision's rope
+        public TextMemento snapshot() {
+            return new TextMemento(latest().text, 0, System.currentTimeMillis(), -1, 0, 0);
+        }
+    }
+
+    // One editing position in a SharedDocument; each cursor is meant for one thread
+    public static final class Cursor implements AutoCloseable {
+        private final SharedDocument document;
+        private SharedDocument.Revision base; // null once closed
+        private int position;
+
+        private Cursor(SharedDocument document, SharedDocument.Revision base) {
+            this.document = document;
+            this.base = base;
+        }
+
+        // Carries the cursor past every revision committed since it last looked
+        private void sync() {
+            if (base == null) {
+                throw new IllegalStateException("Cursor is closed");
+            }
+            for (SharedDocument.Revision next = base.next.get(); next != null; next = base.next.get()) {
+                position = SharedDocument.Edit.mapStart(position, next.edit);
+                base = next;
+            }
+        }
+
+        public int getPosition() {
+            sync();
+            return position;
+        }
+
+        public void moveTo(int newPosition) {
+            sync();
+            position = Math.max(0, Math.min(newPosition, base.text.length()));
+        }
+
+        public void insert(String text) {
+            sync();
+            commit(new SharedDocument.Edit(position, 0, text));
+        }
+
+        // Deletes up to count chars before the cursor, like TextEditor.delete
+        public void delete(int count) {
+            sync();
+            int start = Math.max(0, position - count);
+            commit(new SharedDocument.Edit(start, position - start, ""));
+        }
+
+        private void commit(SharedDocument.Edit edit) {
+            SharedDocument.Revision tip = base;
+            while (true) {
+                for (SharedDocument.Revision next = tip.next.get(); next != null; next = tip.next.get()) {
+                    edit = edit.transform(next.edit);
+                    tip = next;
+                }
+                SharedDocument.Revision candidate =
+                    new SharedDocument.Revision(tip.number + 1, edit.applyTo(tip.text), edit);
+                if (tip.next.compareAndSet(null, candidate)) {
+                    document.advanceHead(candidate);
+                    base = candidate;
+                    position = edit.position + edit.inserted.length();
+                    return;
+                }
+            }
+        }
+
+        // Releases the cursor's revision so the chain behind the tip can be collected
+        @Override
+        public void close() {
+            base = null;
         }
     }
 
     // Caretaker class
-    public static class EditorHistory {
-        private final java.util.Stack<TextMemento> history = new java.util.Stack<>();
+    // Only the newest state is kept in full; older ones are deltas against their newer
+    // neighbour, with a full checkpoint every checkpointInterval saves.
+    // States live in a circular deque bounded at maxHistory, so save, undo and redo
+    // never shift the whole history. Redo entries are deltas against the state the undo
+    // left on top, bounded at maxHistory as well. With a byte budget, the oldest entries
+    // of either kind beyond it are compressed into a spill file and paged back in when
+    // undo or redo reaches them.
+    // A history opened on a file also appends every save, undo and redo to it.
+    public static class EditorHistory implements AutoCloseable {
+        private static final int DEFAULT_CHECKPOINT_INTERVAL = 32;
+
+        private final Deque<HistoryEntry> history; // in memory, newest first
+        private final Deque<RedoEntry> redoHistory;
         private final int maxHistory;
+        private final int checkpointInterval;
+        private final long byteBudget;
+        private long memoryBytes;
+        private SpillFile<HistoryEntry> spilled; // entries older than everything in history
+        private SpillFile<RedoEntry> spilledRedo; // redo entries deeper than everything in redoHistory
+        private HistoryLog log;    // null unless the history is persisted
+        private long saves;
 
         public EditorHistory(int maxHistory) {
+            this(maxHistory, DEFAULT_CHECKPOINT_INTERVAL);
+        }
+
+        public EditorHistory(int maxHistory, int checkpointInterval) {
+            this(maxHistory, checkpointInterval, Long.MAX_VALUE);
+        }
+
+        public EditorHistory(int maxHistory, int checkpointInterval, long byteBudget) {
+            if (maxHistory <= 0) {
+                throw new IllegalArgumentException("History size must be positive");
+            }
             this.maxHistory = maxHistory;
+            this.checkpointInterval = Math.max(1, checkpointInterval);
+            this.byteBudget = byteBudget;
+            this.history = new ArrayDeque<>(maxHistory);
+            this.redoHistory = new ArrayDeque<>();
+        }
+
+        // Reopens (or creates) a persisted history and restores its latest state into the
+        // editor. Only the newest state is rebuilt, from its nearest checkpoint; older
+        // states stay on disk until undo reaches them. Redo history is not persisted.
+        public static EditorHistory open(Path file, int maxHistory, TextEditor editor) throws IOException {
+            EditorHistory restored = new EditorHistory(maxHistory);
+            HistoryLog log = HistoryLog.open(file, maxHistory);
+            try {
+                long[] states = log.liveStates();
+                for (int i = 0; i < states.length - 1; i++) {
+                    restored.push(new HistoryEntry(null, null, states[i], states[i + 1]));
+                }
+                if (states.length > 0) {
+                    TextMemento latest = log.readState(states[states.length - 1]);
+                    restored.push(new HistoryEntry(latest, null, states[states.length - 1], -1));
+                    editor.restore(latest);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.close();
+                throw e;
+            }
+            restored.log = log;
+            System.out.println("History reopened. History size: " + restored.getHistorySize());
+            return restored;
+        }
+
+        // A full snapshot, a delta against the newer neighbour, or both for checkpoints.
+        // Snapshots share rope structure with their neighbours, so only the delta text
+        // counts as memory; only the newest entry lacks a delta.
+        private static final class HistoryEntry implements Spillable {
+            private static final int OVERHEAD_BYTES = 64;
+
+            private final TextMemento checkpoint;
+            private final TextDelta delta;
+            private final long record;      // this state's record in the history log, or -1
+            private final long deltaRecord; // log record to load the delta from, or -1
+
+            private HistoryEntry(TextMemento checkpoint, TextDelta delta) {
+                this(checkpoint, delta, -1, -1);
+            }
+
+            private HistoryEntry(TextMemento checkpoint, TextDelta delta, long record, long deltaRecord) {
+                this.checkpoint = checkpoint;
+                this.delta = delta;
+                this.record = record;
+                this.deltaRecord = deltaRecord;
+            }
+
+            private int storedChars() {
+                return delta == null ? 0 : delta.getRemovedText().length() + delta.getInsertedText().length();
+            }
+
+            private long estimatedBytes() {
+                return OVERHEAD_BYTES + 2L * storedChars();
+            }
+
+            // Spilled entries always have a delta; checkpoints are written in full
+            // only when there is nothing else to write
+            @Override
+            public void writeTo(DataOutputStream out) throws IOException {
+                if (delta == null) {
+                    out.writeByte(0);
+                    out.writeInt(checkpoint.getCursorPosition());
+                    out.writeLong(checkpoint.getTimestamp());
+                    writeText(out, checkpoint.getContent());
+                } else {
+                    out.writeByte(1);
+                    writeDelta(out, delta);
+                }
+            }
+
+            private static HistoryEntry readFrom(DataInputStream in) throws IOException {
+                if (in.readByte() == 1) {
+                    return new HistoryEntry(null, readDelta(in));
+                }
+                int cursor = in.readInt();
+                long timestamp = in.readLong();
+                return new HistoryEntry(new TextMemento(Rope.of(readText(in)), cursor, timestamp, -1, 0, 0), null);
+            }
+
+            private static void writeDelta(DataOutputStream out, TextDelta delta) throws IOException {
+                out.writeInt(delta.getCursorPosition());
+                out.writeLong(delta.getTimestamp());
+                out.writeInt(delta.getPosition());
+                writeText(out, delta.getRemovedText());
+                writeText(out, delta.getInsertedText());
+            }
+
+            private static TextDelta readDelta(DataInputStream in) throws IOException {
+                int cursor = in.readInt();
+                long timestamp = in.readLong();
+                int position = in.readInt();
+                String removed = readText(in);
+                String inserted = readText(in);
+                return new TextDelta(position, removed, inserted, cursor, timestamp);
+            }
+
+            private static void writeText(DataOutputStream out, String text) throws IOException {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            private static String readText(DataInputStream in) throws IOException {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        // Everything needed to take back one undo. The undone state is rebuilt from the new
+        // top of the history by reapplying the expanded entry's delta, and the editor state
+        // from that; only an undo that emptied the history keeps its state in full.
+        private static final class RedoEntry implements Spillable {
+            private final HistoryEntry replacedEntry; // delta-only entry the undo expanded, or null
+            private final HistoryEntry undone;        // the full undone entry, if nothing was expanded
+            private final int undoneCursor;
+            private final long undoneTimestamp;
+            private final long undoneRecord;
+            private final TextDelta toBeforeUndo;     // from the undone state to the editor's
+            private final int beforeCursor;
+            private final long beforeTimestamp;
+
+            private RedoEntry(HistoryEntry undone, HistoryEntry replacedEntry, TextMemento beforeUndo) {
+                TextMemento undoneState = undone.checkpoint;
+                this.replacedEntry = replacedEntry == null ? null
+                    : new HistoryEntry(null, replacedEntry.delta, replacedEntry.record, replacedEntry.deltaRecord);
+                this.undone = replacedEntry == null ? undone : null;
+                this.undoneCursor = undoneState.getCursorPosition();
+                this.undoneTimestamp = undoneState.getTimestamp();
+                this.undoneRecord = undone.record;
+                this.toBeforeUndo = TextDelta.between(beforeUndo, undoneState);
+                this.beforeCursor = beforeUndo.getCursorPosition();
+                this.beforeTimestamp = beforeUndo.getTimestamp();
+            }
+
+            private RedoEntry(HistoryEntry replacedEntry, HistoryEntry undone, int undoneCursor,
+                              long undoneTimestamp, long undoneRecord, TextDelta toBeforeUndo,
+                              int beforeCursor, long beforeTimestamp) {
+                this.replacedEntry = replacedEntry;
+                this.undone = undone;
+                this.undoneCursor = undoneCursor;
+                this.undoneTimestamp = undoneTimestamp;
+                this.undoneRecord = undoneRecord;
+                this.toBeforeUndo = toBeforeUndo;
+                this.beforeCursor = beforeCursor;
+                this.beforeTimestamp = beforeTimestamp;
+            }
+
+            private long estimatedBytes() {
+                HistoryEntry kept = replacedEntry != null ? replacedEntry : undone;
+                return kept.estimatedBytes() + 2L * (toBeforeUndo.getRemovedText().length()
+                    + toBeforeUndo.getInsertedText().length());
+            }
+
+            // A log-backed replaced entry keeps pointing at its log record instead of
+            // reading the delta back in just to spill it
+            @Override
+            public void writeTo(DataOutputStream out) throws IOException {
+                out.writeInt(undoneCursor);
+                out.writeLong(undoneTimestamp);
+                out.writeLong(undoneRecord);
+                out.writeInt(beforeCursor);
+                out.writeLong(beforeTimestamp);
+                HistoryEntry.writeDelta(out, toBeforeUndo);
+                if (replacedEntry == null) {
+                    out.writeByte(0);
+                    undone.writeTo(out);
+                } else {
+                    out.writeByte(1);
+                    out.writeLong(replacedEntry.record);
+                    out.writeLong(replacedEntry.deltaRecord);
+                    out.writeBoolean(replacedEntry.delta != null);
+                    if (replacedEntry.delta != null) {
+                        HistoryEntry.writeDelta(out, replacedEntry.delta);
+                    }
+                }
+            }
+
+            private static RedoEntry readFrom(DataInputStream in) throws IOException {
+                int undoneCursor = in.readInt();
+                long undoneTimestamp = in.readLong();
+                long undoneRecord = in.readLong();
+                int beforeCursor = in.readInt();
+                long beforeTimestamp = in.readLong();
+                TextDelta toBeforeUndo = HistoryEntry.readDelta(in);
+                HistoryEntry replacedEntry = null;
+                HistoryEntry undone = null;
+                if (in.readByte() == 0) {
+                    undone = HistoryEntry.readFrom(in);
+                } else {
+                    long record = in.readLong();
+                    long deltaRecord = in.readLong();
+                    TextDelta delta = in.readBoolean() ? HistoryEntry.readDelta(in) : null;
+                    replacedEntry = new HistoryEntry(null, delta, record, deltaRecord);
+                }
+                return new RedoEntry(replacedEntry, undone, undoneCursor, undoneTimestamp, undoneRecord,
+                    toBeforeUndo, beforeCursor, beforeTimestamp);
+            }
+        }
+
+        private interface Spillable {
+            void writeTo(DataOutputStream out) throws IOException;
+        }
+
+        private interface SpillReader<T> {
+            T readFrom(DataInputStream in) throws IOException;
+        }
+
+        // Append-only file of deflated entries, oldest first. Dropping the oldest only moves
+        // the start; once the dead prefix outgrows the live entries they are slid down to
+        // the front, so each byte is copied O(1) times on average and the file stays
+        // within twice the live size (or COMPACT_MIN_BYTES).
+        private static final class SpillFile<T extends Spillable> implements AutoCloseable {
+            private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+            private final Path path;
+            private final FileChannel channel;
+            private final SpillReader<T> reader;
+            private final Deque<long[]> locations = new ArrayDeque<>(); // {offset, length}
+            private long end;
+
+            private SpillFile(SpillReader<T> reader) throws IOException {
+                this.path = Files.createTempFile("editor-history", ".spill");
+                this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.reader = reader;
+            }
+
+            private int size() {
+                return locations.size();
+            }
+
+            // Adds an entry that is newer than every entry already spilled
+            private void appendNewest(T entry) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+                    entry.writeTo(out);
+                } finally {
+                    deflater.end();
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                long offset = end;
+                while (buffer.hasRemaining()) {
+                    end += channel.write(buffer, end);
+                }
+                locations.addLast(new long[] {offset, end - offset});
+            }
+
+            private T takeNewest() throws IOException {
+                long[] location = locations.removeLast();
+                ByteBuffer buffer = ByteBuffer.allocate((int) location[1]);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, location[0] + buffer.position()) < 0) {
+                        throw new IOException("Spill file truncated");
+                    }
+                }
+                if (locations.isEmpty()) {
+                    reset();
+                } else {
+                    end = location[0];
+                }
+                try (DataInputStream in = new DataInputStream(
+                        new InflaterInputStream(new ByteArrayInputStream(buffer.array())))) {
+                    return reader.readFrom(in);
+                }
+            }
+
+            private void dropOldest() throws IOException {
+                locations.removeFirst();
+                if (locations.isEmpty()) {
+                    reset();
+                    return;
+                }
+                long start = locations.peekFirst()[0];
+                if (start > COMPACT_MIN_BYTES && start > end - start) {
+                    compact(start);
+                }
+            }
+
+            // Moves the live entries in [start, end) to the front of the file. The target
+            // is always below the source, so copying upwards never overwrites unread bytes.
+            private void compact(long start) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COMPACT_MIN_BYTES, end - start));
+                for (long from = start; from < end; ) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - from));
+                    int read = channel.read(buffer, from);
+                    if (read < 0) {
+                        throw new IOException("Spill file truncated");
+                    }
+                    buffer.flip();
+                    long to = from - start;
+                    while (buffer.hasRemaining()) {
+                        to += channel.write(buffer, to);
+                    }
+                    from += read;
+                }
+                for (long[] location : locations) {
+                    location[0] -= start;
+                }
+                end -= start;
+                channel.truncate(end);
+            }
+
+            private void clear() throws IOException {
+                locations.clear();
+                reset();
+            }
+
+            private void reset() throws IOException {
+                channel.truncate(0);
+                end = 0;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    channel.close();
+                } finally {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        // Header: [magic:4][index offset:8][crc32:4], then records laid out as
+        // [length:4][type:1][payload][crc32:4], length covering type and payload.
+        // A state record holds its parent state's offset, its distance from the nearest
+        // full-text checkpoint, cursor and timestamp, the delta back to the parent, and the
+        // full text when it is itself a checkpoint. Saves are not fsynced one by one; a
+        // torn tail is cut off on reopen. Whenever a checkpoint is written the log is either
+        // compacted to the live states, once undone and dropped ones dominate it, or gets an
+        // index record of the live states that the header points to, so reopening only
+        // scans the records written after the last index.
+        private static final class HistoryLog implements AutoCloseable {
+            private static final byte STATE = 1;
+            private static final byte UNDO = 2;
+            private static final byte REDO = 3;
+            private static final byte INDEX = 4;
+            private static final int CHECKPOINT_INTERVAL = 32;
+            private static final int MAGIC = 0x45444831; // "EDH1"
+            private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+            private final Path path;
+            private final FileChannel channel;
+            private final int maxHistory;
+            // The history's stack over record offsets, oldest state first, mirrored from
+            // every record written or replayed; compaction keeps only these states
+            private final Deque<Long> stack = new ArrayDeque<>();
+            private final Deque<Long> redo = new ArrayDeque<>();
+            private long records;
+            private long end = HEADER_SIZE;
+            private boolean checkpointed; // the last state appended was written in full
+
+            private HistoryLog(Path path, FileChannel channel, int maxHistory) {
+                this.path = path;
+                this.channel = channel;
+                this.maxHistory = maxHistory;
+            }
+
+            // Restores the stack from the index the header points to and replays only the
+            // records after it (the whole log if there is no intact index), cuts off a torn
+            // tail, and compacts first if most of its records are no longer live
+            private static HistoryLog open(Path file, int maxHistory) throws IOException {
+                FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                HistoryLog log = new HistoryLog(file, channel, maxHistory);
+                try {
+                    long size = channel.size();
+                    if (size > Integer.MAX_VALUE) {
+                        throw new IOException("History file too large: " + size + " bytes");
+                    }
+                    if (size == 0) {
+                        log.writeHeader(0);
+                        return log;
+                    }
+                    ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    if (size < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+                        throw new IOException("Not an editor history file: " + file);
+                    }
+                    int from = log.loadIndex(mapped);
+                    log.end = scan(mapped, from, log::track);
+                    channel.truncate(log.end);
+                    return log.needsCompaction() ? log.compact() : log;
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+
+            private interface RecordVisitor {
+                void visit(long offset, byte type);
+            }
+
+            // Walks the intact records of the mapped file from an offset and returns where they end
+            private static long scan(ByteBuffer mapped, int from, RecordVisitor visitor) {
+                CRC32 crc = new CRC32();
+                int offset = from;
+                int next;
+                while ((next = recordEnd(mapped, offset, crc)) > 0) {
+                    visitor.visit(offset, mapped.get(offset + Integer.BYTES));
+                    offset = next;
+                }
+                return offset;
+            }
+
+            // Where the record at offset ends, or -1 if it is torn or corrupt
+            private static int recordEnd(ByteBuffer mapped, int offset, CRC32 crc) {
+                if (offset < HEADER_SIZE || mapped.limit() - offset < Integer.BYTES + 1 + Integer.BYTES) {
+                    return -1;
+                }
+                int length = mapped.getInt(offset);
+                if (length <= 0 || length > mapped.limit() - offset - 2 * Integer.BYTES) {
+                    return -1;
+                }
+                crc.reset();
+                crc.update(mapped.slice(offset + Integer.BYTES, length));
+                if (mapped.getInt(offset + Integer.BYTES + length) != (int) crc.getValue()) {
+                    return -1;
+                }
+                return offset + length + 2 * Integer.BYTES;
+            }
+
+            // Loads the stack from the index the header points to and returns where to
+            // resume scanning; without an intact index that is the first record
+            private int loadIndex(ByteBuffer mapped) {
+                CRC32 crc = new CRC32();
+                crc.update(mapped.slice(0, Integer.BYTES + Long.BYTES));
+                long index = mapped.getLong(Integer.BYTES);
+                if (mapped.getInt(Integer.BYTES + Long.BYTES) != (int) crc.getValue()
+                        || index < HEADER_SIZE || index > mapped.limit()) {
+                    return HEADER_SIZE;
+                }
+                int at = (int) index;
+                int next = recordEnd(mapped, at, crc);
+                if (next < 0 || mapped.get(at + Integer.BYTES) != INDEX) {
+                    return HEADER_SIZE;
+                }
+                int body = at + Integer.BYTES + 1;
+                records = mapped.getLong(body) + 1; // counting the index record itself
+                int count = mapped.getInt(body + Long.BYTES);
+                for (int i = 0; i < count; i++) {
+                    stack.addLast(mapped.getLong(body + Long.BYTES + Integer.BYTES + i * Long.BYTES));
+                }
+                return next;
+            }
+
+            // Appends an index of the live states and, once it is durable, points the
+            // header at it. A torn header fails its checksum and reopening scans everything.
+            private void writeIndex() throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(INDEX);
+                out.writeLong(records);
+                out.writeInt(stack.size());
+                for (long state : stack) {
+                    out.writeLong(state);
+                }
+                long index = append(bytes.toByteArray());
+                track(index, INDEX);
+                channel.force(false);
+                writeHeader(index);
+            }
+
+            private void writeHeader(long index) throws IOException {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(index);
+                CRC32 crc = new CRC32();
+                crc.update(header.array(), 0, Integer.BYTES + Long.BYTES);
+                header.putInt((int) crc.getValue()).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+
+            // Applies a save/undo/redo record to the stack, as EditorHistory does to its own
+            private void track(long offset, byte type) {
+                records++;
+                switch (type) {
+                    case STATE -> {
+                        redo.clear();
+                        if (stack.size() >= maxHistory) {
+                            stack.removeFirst();
+                        }
+                        stack.addLast(offset);
+                    }
+                    case UNDO -> {
+                        if (!stack.isEmpty()) {
+                            redo.push(stack.removeLast());
+                        }
+                    }
+                    case REDO -> {
+                        if (!redo.isEmpty()) {
+                            stack.addLast(redo.pop());
+                        }
+                    }
+                    default -> { }
+                }
+            }
+
+            // Record offsets of the states on the history's stack, oldest first
+            private long[] liveStates() {
+                return stack.stream().mapToLong(Long::longValue).toArray();
+            }
+
+            private boolean needsCompaction() {
+                return records > 2L * stack.size() + CHECKPOINT_INTERVAL;
+            }
+
+            // Rewrites just the live states into a sibling file, the oldest in full and the
+            // rest as deltas, and moves it over this log. The cost is bounded by maxHistory
+            // rather than by every edit ever made.
+            private HistoryLog compact() throws IOException {
+                Path target = path.toAbsolutePath();
+                Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+                try {
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    HistoryLog compacted = new HistoryLog(path, out, maxHistory);
+                    try {
+                        compacted.writeHeader(0);
+                        TextMemento state = null;
+                        long parent = -1;
+                        for (long record : liveStates()) {
+                            TextDelta toParent = null;
+                            if (state == null) {
+                                state = readState(record);
+                            } else {
+                                StateRecord stored = readRecord(record, false);
+                                toParent = stored.toParent;
+                                state = toParent.reapplyTo(state, stored.cursor, stored.timestamp);
+                            }
+                            parent = compacted.appendState(parent, state, toParent);
+                        }
+                        compacted.writeIndex();
+                        out.force(true);
+                        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException | RuntimeException e) {
+                        out.close();
+                        throw e;
+                    }
+                    channel.close();
+                    return compacted;
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            }
+
+            private long appendState(long parent, TextMemento state, TextDelta deltaToParent) throws IOException {
+                int chain = 0;
+                if (parent >= 0) {
+                    chain = (chainOf(parent) + 1) % CHECKPOINT_INTERVAL;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(STATE);
+                out.writeLong(parent < 0 ? -1 : parent);
+                out.writeInt(parent < 0 ? 0 : chain);
+                out.writeInt(state.getCursorPosition());
+                out.writeLong(state.getTimestamp());
+                if (parent >= 0) {
+                    out.writeInt(deltaToParent.getPosition());
+                    HistoryEntry.writeText(out, deltaToParent.getRemovedText());
+                    HistoryEntry.writeText(out, deltaToParent.getInsertedText());
+                }
+                if (parent < 0 || chain == 0) {
+                    HistoryEntry.writeText(out, state.getContent());
+                }
+                long record = append(bytes.toByteArray());
+                track(record, STATE);
+                checkpointed = parent < 0 || chain == 0;
+                return record;
+            }
+
+            private void appendMarker(byte type) throws IOException {
+                track(append(new byte[] {type}), type);
+            }
+
+            private long append(byte[] body) throws IOException {
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                ByteBuffer buffer = ByteBuffer.allocate(body.length + 2 * Integer.BYTES);
+                buffer.putInt(body.length).put(body).putInt((int) crc.getValue()).flip();
+                long offset = end;
+                while (buffer.hasRemaining()) {
+                    end += channel.write(buffer, end);
+                }
+                return offset;
+            }
+
+            private ByteBuffer read(long offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("History file truncated");
+                    }
+                }
+                return buffer.flip();
+            }
+
+            private DataInputStream body(long offset) throws IOException {
+                int length = read(offset, Integer.BYTES).getInt();
+                ByteBuffer body = read(offset + Integer.BYTES, length);
+                return new DataInputStream(new ByteArrayInputStream(body.array()));
+            }
+
+            private int chainOf(long record) throws IOException {
+                return read(record + Integer.BYTES + 1 + Long.BYTES, Integer.BYTES).getInt();
+            }
+
+            // A state record's fields: the delta back to its parent is null for a first
+            // state, the text is only read when asked for and the record is a checkpoint
+            private static final class StateRecord {
+                private final long parent;
+                private final int cursor;
+                private final long timestamp;
+                private final TextDelta toParent;
+                private final Rope text;
+
+                private StateRecord(long parent, int cursor, long timestamp, TextDelta toParent, Rope text) {
+                    this.parent = parent;
+                    this.cursor = cursor;
+                    this.timestamp = timestamp;
+                    this.toParent = toParent;
+                    this.text = text;
+                }
+            }
+
+            private StateRecord readRecord(long record, boolean withText) throws IOException {
+                try (DataInputStream in = body(record)) {
+                    in.readByte();
+                    long parent = in.readLong();
+                    int chain = in.readInt();
+                    int cursor = in.readInt();
+                    long timestamp = in.readLong();
+                    TextDelta toParent = null;
+                    if (parent >= 0) {
+                        int position = in.readInt();
+                        String removed = HistoryEntry.readText(in);
+                        String inserted = HistoryEntry.readText(in);
+                        toParent = new TextDelta(position, removed, inserted, cursor, timestamp);
+                    }
+                    Rope text = null;
+                    if (withText && (parent < 0 || chain == 0)) {
+                        text = Rope.of(HistoryEntry.readText(in));
+                    }
+                    return new StateRecord(parent, cursor, timestamp, toParent, text);
+                }
+            }
+
+            // Delta from a state record back to its parent
+            private TextDelta readDelta(long record) throws IOException {
+                StateRecord state = readRecord(record, false);
+                if (state.parent < 0) {
+                    throw new IOException("State has no parent");
+                }
+                // The delta restores the parent, so it carries the parent's cursor and time
+                ByteBuffer parent = read(state.parent + Integer.BYTES + 1 + Long.BYTES + Integer.BYTES,
+                    Integer.BYTES + Long.BYTES);
+                TextDelta delta = state.toParent;
+                return new TextDelta(delta.getPosition(), delta.getRemovedText(), delta.getInsertedText(),
+                    parent.getInt(), parent.getLong());
+            }
+
+            // Rebuilds a state from its nearest checkpoint; at most CHECKPOINT_INTERVAL deltas
+            private TextMemento readState(long record) throws IOException {
+                Deque<TextDelta> path = new ArrayDeque<>();
+                StateRecord state = readRecord(record, true);
+                StateRecord current = state;
+                while (current.text == null) {
+                    path.push(current.toParent);
+                    current = readRecord(current.parent, true);
+                }
+                Rope text = current.text;
+                while (!path.isEmpty()) {
+                    text = path.pop().reapplyTo(text);
+                }
+                return new TextMemento(text, state.cursor, state.timestamp, -1, 0, 0);
+            }
+
+            // Compacts or indexes on the way out too, so the next open reads about
+            // maxHistory states and no records past the index
+            @Override
+            public void close() throws IOException {
+                FileChannel open = channel;
+                try {
+                    if (needsCompaction()) {
+                        open = compact().channel; // already forced
+                    } else {
+                        writeIndex();
+                        channel.force(false);
+                    }
+                } finally {
+                    open.close();
+                }
+            }
         }
 
         public void saveState(TextEditor editor) {
-            if (history.size() >= maxHistory) {
-                history.remove(0); // Remove oldest
+            TextMemento memento = editor.save();
+            while (!redoHistory.isEmpty()) {
+                popRedo();
+            }
+            if (getSpilledRedoCount() > 0) {
+                try {
+                    spilledRedo.clear();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            if (getHistorySize() >= maxHistory) {
+                dropOldest();
+            }
+            long parentRecord = -1;
+            TextDelta delta = null;
+            if (!history.isEmpty()) {
+                HistoryEntry previous = pop();
+                delta = TextDelta.between(memento, previous.checkpoint);
+                boolean checkpoint = saves % checkpointInterval == 0;
+                push(new HistoryEntry(checkpoint ? previous.checkpoint : null, delta, previous.record, -1));
+                parentRecord = previous.record;
+            }
+            saves++;
+            long record = -1;
+            if (log != null) {
+                try {
+                    record = log.appendState(parentRecord, memento, delta);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
-            history.push(editor.save());
-            System.out.println("State saved. History size: " + history.size());
+            push(new HistoryEntry(memento, null, record, -1));
+            if (log != null && log.checkpointed) {
+                try {
+                    maintainLog();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            enforceBudget();
+            System.out.println("State saved. History size: " + getHistorySize());
         }
 
         public void undo(TextEditor editor) {
-            if (!history.isEmpty()) {
-                TextMemento memento = history.pop();
+            if (canUndo()) {
+                TextMemento beforeUndo = editor.capture();
+                HistoryEntry undone = pop();
+                TextMemento memento = undone.checkpoint;
+                if (history.isEmpty() && spilled != null && spilled.size() > 0) {
+                    push(unspill());
+                }
+                HistoryEntry replacedEntry = null;
+                if (!history.isEmpty() && (history.peek().checkpoint == null || history.peek().delta != null)) {
+                    // The new top must be full so the next save or undo can build on it;
+                    // rebuilding it from the restored state also keeps the next delta cheap
+                    replacedEntry = pop();
+                    TextDelta delta = loadDelta(replacedEntry);
+                    push(new HistoryEntry(delta.applyTo(memento), null, replacedEntry.record, -1));
+                }
+                if (redoHistory.size() + getSpilledRedoCount() >= maxHistory) {
+                    dropOldestRedo();
+                }
+                RedoEntry redo = new RedoEntry(undone, replacedEntry, beforeUndo);
+                redoHistory.push(redo);
+                memoryBytes += redo.estimatedBytes();
+                enforceBudget();
+                appendMarker(HistoryLog.UNDO);
                 editor.restore(memento);
-                System.out.println("Undo completed. History size: " + history.size());
+                System.out.println("Undo completed. History size: " + getHistorySize());
             } else {
                 System.out.println("No more states to undo");
             }
         }
 
+        public void redo(TextEditor editor) {
+            if (!redoHistory.isEmpty()) {
+                RedoEntry entry = popRedo();
+                if (redoHistory.isEmpty() && getSpilledRedoCount() > 0) {
+                    RedoEntry next = unspill(spilledRedo);
+                    redoHistory.push(next);
+                    memoryBytes += next.estimatedBytes();
+                }
+                TextMemento undoneState;
+                if (entry.replacedEntry != null) {
+                    TextMemento top = pop().checkpoint;
+                    undoneState = loadDelta(entry.replacedEntry)
+                        .reapplyTo(top, entry.undoneCursor, entry.undoneTimestamp);
+                    push(entry.replacedEntry);
+                } else {
+                    undoneState = entry.undone.checkpoint;
+                }
+                push(new HistoryEntry(undoneState, null, entry.undoneRecord, -1));
+                enforceBudget();
+                appendMarker(HistoryLog.REDO);
+                editor.restoreDerived(entry.toBeforeUndo
+                    .reapplyTo(undoneState, entry.beforeCursor, entry.beforeTimestamp));
+                System.out.println("Redo completed. History size: " + getHistorySize());
+            } else {
+                System.out.println("No more states to redo");
+            }
+        }
+
+        // After a checkpoint the log is compacted once dead records dominate it, moving
+        // the live states; entries pointing into the log follow them. Redo is empty here.
+        private void maintainLog() throws IOException {
+            if (!log.needsCompaction()) {
+                log.writeIndex();
+                return;
+            }
+            long[] before = log.liveStates();
+            log = log.compact();
+            long[] after = log.liveStates();
+            Map<Long, Long> moved = new HashMap<>();
+            for (int i = 0; i < before.length; i++) {
+                moved.put(before[i], after[i]);
+            }
+            List<HistoryEntry> entries = new ArrayList<>(history);
+            history.clear();
+            for (HistoryEntry entry : entries) {
+                history.addLast(new HistoryEntry(entry.checkpoint, entry.delta,
+                    moved.getOrDefault(entry.record, -1L), moved.getOrDefault(entry.deltaRecord, -1L)));
+            }
+        }
+
+        private TextDelta loadDelta(HistoryEntry entry) {
+            if (entry.delta != null || entry.deltaRecord < 0) {
+                return entry.delta;
+            }
+            try {
+                return log.readDelta(entry.deltaRecord);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void appendMarker(byte type) {
+            if (log != null) {
+                try {
+                    log.appendMarker(type);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void push(HistoryEntry entry) {
+            history.push(entry);
+            memoryBytes += entry.estimatedBytes();
+        }
+
+        private HistoryEntry pop() {
+            HistoryEntry entry = history.pop();
+            memoryBytes -= entry.estimatedBytes();
+            return entry;
+        }
+
+        private RedoEntry popRedo() {
+            RedoEntry entry = redoHistory.pop();
+            memoryBytes -= entry.estimatedBytes();
+            return entry;
+        }
+
+        private void dropOldestRedo() {
+            if (getSpilledRedoCount() > 0) {
+                try {
+                    spilledRedo.dropOldest();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                memoryBytes -= redoHistory.removeLast().estimatedBytes();
+            }
+        }
+
+        private void dropOldest() {
+            if (spilled != null && spilled.size() > 0) {
+                try {
+                    spilled.dropOldest();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                memoryBytes -= history.removeLast().estimatedBytes();
+            }
+        }
+
+        // Spills from the oldest end of the history, then of the redo entries; the newest
+        // entry of each always stays in memory, so undo and redo never wait on the disk twice
+        private void enforceBudget() {
+            if (memoryBytes <= byteBudget) {
+                return;
+            }
+            try {
+                if (spilled == null) {
+                    spilled = new SpillFile<>(HistoryEntry::readFrom);
+                }
+                while (memoryBytes > byteBudget && history.size() > 1) {
+                    HistoryEntry oldest = history.removeLast();
+                    memoryBytes -= oldest.estimatedBytes();
+                    spilled.appendNewest(new HistoryEntry(oldest.checkpoint, loadDelta(oldest)));
+                }
+                if (memoryBytes > byteBudget && redoHistory.size() > 1 && spilledRedo == null) {
+                    spilledRedo = new SpillFile<>(RedoEntry::readFrom);
+                }
+                while (memoryBytes > byteBudget && redoHistory.size() > 1) {
+                    RedoEntry oldest = redoHistory.removeLast();
+                    memoryBytes -= oldest.estimatedBytes();
+                    spilledRedo.appendNewest(oldest);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private HistoryEntry unspill() {
+            return unspill(spilled);
+        }
+
+        private static <T extends Spillable> T unspill(SpillFile<T> file) {
+            try {
+                return file.takeNewest();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
         public boolean canUndo() {
             return !history.isEmpty();
         }
 
+        public boolean canRedo() {
+            return !redoHistory.isEmpty();
+        }
+
         public int getHistorySize() {
-            return history.size();
+            return history.size() + getSpilledCount();
+        }
+
+        public int getSpilledCount() {
+            return spilled == null ? 0 : spilled.size();
+        }
+
+        public int getSpilledRedoCount() {
+            return spilledRedo == null ? 0 : spilledRedo.size();
+        }
+
+        // Delta characters held in memory, a rough measure of history memory
+        public long getStoredChars() {
+            long total = 0;
+            for (HistoryEntry entry : history) {
+                total += entry.storedChars();
+            }
+            return total;
+        }
+
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (spilled != null) {
+                    spilled.close();
+                }
+                if (spilledRedo != null) {
+                    spilledRedo.close();
+                }
+                if (log != null) {
+                    log.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                spilled = null;
+                spilledRedo = null;
+                log = null;
+            }
         }
     }
 
@@ -124,12 +2270,13 @@ public class MementoPattern {
         editor.write(" Java");
         history.saveState(editor);
 
-        editor.setCursor(editor.content.length());
+        editor.setCursor(editor.length());
         editor.write("!");
         history.saveState(editor);
 
         System.out.println("\n--- Current State ---");
         editor.showStatus();
+        System.out.println("Characters stored by history: " + history.getStoredChars());
 
         // Undo operations
         System.out.println("\n--- Undo Operations ---");
@@ -140,5 +2287,106 @@ public class MementoPattern {
         // Try to undo when no history
         System.out.println("\n--- Trying to undo with no history ---");
         history.undo(editor);
+
+        // Redo walks forward again
+        System.out.println("\n--- Redo Operations ---");
+        history.redo(editor);
+        history.redo(editor);
+        editor.showStatus();
+
+        // Large files are mapped rather than read; only edited pieces live on the heap
+        System.out.println("\n--- Memory-Mapped File ---");
+        try {
+            Path log = Files.createTempFile("server", ".log");
+            Files.writeString(log, "INFO start\nWARN disk low\nINFO stop\n", StandardCharsets.UTF_8);
+            TextEditor viewer = new TextEditor();
+            viewer.open(log); // detected as UTF-8
+            viewer.setCursor(11);
+            viewer.write("ERROR fan stalled\n");
+            viewer.find("WARN");
+            viewer.saveTo(log);
+            System.out.print(Files.readString(log, StandardCharsets.UTF_8));
+            Files.deleteIfExists(log);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Several threads edit one document through their own cursors, without a lock
+        System.out.println("\n--- Concurrent Cursors ---");
+        SharedDocument shared = new SharedDocument("[A][B][C]");
+        Thread[] writers = new Thread[3];
+        // Place every cursor before any writer starts, so positions refer to the same text
+        Cursor[] cursors = new Cursor[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            cursors[i] = shared.newCursor(3 * i + 2);
+        }
+        for (int i = 0; i < writers.length; i++) {
+            Cursor cursor = cursors[i];
+            char name = (char) ('a' + i);
+            writers[i] = new Thread(() -> {
+                try (cursor) {
+                    for (int k = 0; k < 5; k++) {
+                        cursor.insert(String.valueOf(name));
+                    }
+                    cursor.delete(1);
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println("Merged text: '" + shared.getText() + "' after " + shared.getRevision() + " revisions");
+        TextEditor reviewer = new TextEditor();
+        reviewer.restore(shared.snapshot());
+
+        // History written to disk survives a restart, undo included
+        System.out.println("\n--- Persisted History ---");
+        try {
+            Path historyFile = Files.createTempFile("notes", ".history");
+            TextEditor notes = new TextEditor();
+            try (EditorHistory persisted = EditorHistory.open(historyFile, 100, notes)) {
+                notes.write("Buy milk");
+                persisted.saveState(notes);
+                notes.write(", eggs");
+                persisted.saveState(notes);
+                notes.write(", bread");
+                persisted.saveState(notes);
+                persisted.undo(notes);
+            }
+            TextEditor reopened = new TextEditor();
+            try (EditorHistory persisted = EditorHistory.open(historyFile, 100, reopened)) {
+                persisted.undo(reopened);
+                persisted.undo(reopened);
+            }
+            Files.deleteIfExists(historyFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // A tiny byte budget forces older states out to the compressed spill file
+        System.out.println("\n--- Byte-Budgeted History ---");
+        try (EditorHistory budgeted = new EditorHistory(100, 4, 512)) {
+            TextEditor draft = new TextEditor();
+            for (int i = 0; i < 10; i++) {
+                draft.write("Line " + i + " of a long draft. ");
+                budgeted.saveState(draft);
+            }
+            System.out.println("In memory: " + budgeted.getMemoryBytes() + " bytes, spilled entries: "
+                + budgeted.getSpilledCount());
+            while (budgeted.canUndo()) {
+                budgeted.undo(draft);
+            }
+            // Redo entries spill too, so every undo can still be taken back
+            System.out.println("Spilled redo entries: " + budgeted.getSpilledRedoCount());
+            while (budgeted.canRedo()) {
+                budgeted.redo(draft);
+            }
+            System.out.println("Redone to: '" + draft.getContent() + "'");
+        }
     }
 }